@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JComponent;
+import javax.swing.JScrollPane;
+import javax.swing.ScrollPaneConstants;
+import rubensandreoli.imageorganizer.gui.support.FilmstripListener;
+import rubensandreoli.imageorganizer.io.ImageEntry;
+import rubensandreoli.imageorganizer.io.ImageFolder;
+import rubensandreoli.imageorganizer.io.ThumbnailLoader;
+
+/**
+ * Horizontal strip with the thumbnails of the folder's images.
+ * <br>
+ * Cells aren't components, they are only painted, and only the visible ones, so the strip costs the same for
+ * any number of images. Thumbnails scrolled out of view before being loaded are cancelled.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class FilmstripPanel extends javax.swing.JPanel {
+    private static final long serialVersionUID = 1L;
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final int GAP = 4;
+    private static final int CELL_SIZE = ThumbnailLoader.SIZE + GAP*2;
+    private static final Color SELECTED_COLOR = new Color(51, 153, 255);
+    private static final Color EMPTY_COLOR = new Color(235, 235, 235);
+    // </editor-fold>
+
+    private class Strip extends JComponent{
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(getNumImages()*CELL_SIZE, CELL_SIZE);
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            if(folder == null) return;
+            final Rectangle clip = g.getClipBounds();
+            final int numImages = getNumImages();
+            final int first = Math.max(0, clip.x/CELL_SIZE);
+            final int last = Math.min(numImages-1, (clip.x+clip.width)/CELL_SIZE);
+            for (int i = first; i <= last; i++) {
+                final int x = i*CELL_SIZE;
+                if(i == selected){
+                    g.setColor(SELECTED_COLOR);
+                    g.fillRect(x, 0, CELL_SIZE, CELL_SIZE);
+                }
+                final BufferedImage thumbnail = thumbnails.get(folder.getImage(i));
+                if(thumbnail == null){
+                    g.setColor(EMPTY_COLOR);
+                    g.fillRect(x+GAP, GAP, ThumbnailLoader.SIZE, ThumbnailLoader.SIZE);
+                }else{ //centered
+                    g.drawImage(thumbnail, x+GAP+(ThumbnailLoader.SIZE-thumbnail.getWidth())/2, GAP+(ThumbnailLoader.SIZE-thumbnail.getHeight())/2, null);
+                }
+            }
+            retainVisible();
+        }
+
+    }
+
+    private final ThumbnailLoader thumbnails;
+    private final Strip strip = new Strip();
+    private final JScrollPane scroll;
+    private ImageFolder folder;
+    private int selected = -1;
+    private FilmstripListener listener;
+
+    public FilmstripPanel(ThumbnailLoader thumbnails) {
+        super(new BorderLayout());
+        this.thumbnails = thumbnails;
+        thumbnails.setCallback(strip::repaint);
+        scroll = new JScrollPane(strip, ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
+        scroll.getHorizontalScrollBar().setUnitIncrement(CELL_SIZE/2);
+        scroll.setBorder(null);
+        add(scroll, BorderLayout.CENTER);
+        setPreferredSize(new Dimension(CELL_SIZE, CELL_SIZE + scroll.getHorizontalScrollBar().getPreferredSize().height));
+        strip.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent evt) {
+                final int pos = evt.getX()/CELL_SIZE;
+                if(listener != null && folder != null && pos < getNumImages()) listener.thumbnailSelected(pos);
+            }
+        });
+        strip.addMouseWheelListener(evt -> { //wheel scrolls sideways, as there's nothing to scroll vertically
+            final int value = scroll.getHorizontalScrollBar().getValue();
+            scroll.getHorizontalScrollBar().setValue(value + evt.getWheelRotation()*CELL_SIZE);
+        });
+    }
+
+    private int getNumImages(){
+        return folder == null? 0 : folder.getNumImages();
+    }
+
+    private void retainVisible(){ //cancels thumbnails scrolled out of view
+        final Rectangle visible = strip.getVisibleRect();
+        final int first = visible.x/CELL_SIZE;
+        final int last = Math.min(getNumImages()-1, (visible.x+visible.width)/CELL_SIZE);
+        final List<ImageEntry> entries = new ArrayList<>(Math.max(0, last-first+1));
+        for (int i = first; i <= last; i++) entries.add(folder.getImage(i));
+        thumbnails.retain(entries);
+    }
+
+    /**
+     * Should be called whenever images are added or removed.
+     */
+    public void refresh(){
+        strip.revalidate();
+        strip.repaint();
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" SETTERS ">
+    public void setFolder(ImageFolder folder){
+        this.folder = folder;
+        selected = -1;
+        thumbnails.clear();
+        scroll.getHorizontalScrollBar().setValue(0);
+        refresh();
+    }
+
+    public void setSelected(int pos){
+        selected = pos;
+        strip.scrollRectToVisible(new Rectangle(pos*CELL_SIZE, 0, CELL_SIZE, CELL_SIZE));
+        strip.repaint();
+    }
+
+    public void setListener(FilmstripListener listener){
+        this.listener = listener;
+    }
+    // </editor-fold>
+
+}
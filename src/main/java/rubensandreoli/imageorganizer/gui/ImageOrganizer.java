@@ -16,32 +16,48 @@
  */
 package rubensandreoli.imageorganizer.gui;
 
+import rubensandreoli.imageorganizer.gui.support.FilmstripListener;
+import rubensandreoli.imageorganizer.gui.support.ImageListener;
 import rubensandreoli.imageorganizer.gui.support.ToolsListener;
+import java.awt.BorderLayout;
 import java.awt.Cursor;
 import java.awt.KeyboardFocusManager;
+import java.awt.image.BufferedImage;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.JButton;
+import javax.swing.JDialog;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.Timer;
 import javax.swing.plaf.basic.BasicSplitPaneDivider;
 import javax.swing.plaf.basic.BasicSplitPaneUI;
-import rubensandreoli.commons.exceptions.UnsupportedException;
 import rubensandreoli.commons.others.Level;
 import rubensandreoli.commons.others.Logger;
 import rubensandreoli.commons.swing.AboutDialog;
 import rubensandreoli.commons.utils.FileUtils;
 import rubensandreoli.commons.utils.SwingUtils;
 import rubensandreoli.imageorganizer.io.Settings;
+import rubensandreoli.imageorganizer.io.support.FolderListener;
 import rubensandreoli.imageorganizer.io.support.SettingsChangeEvent;
 import rubensandreoli.imageorganizer.io.support.SettingsListener;
 import rubensandreoli.imageorganizer.io.support.Shortcut;
+import rubensandreoli.imageorganizer.io.support.TransferListener;
+import rubensandreoli.imageorganizer.io.FolderIndex;
 import rubensandreoli.imageorganizer.io.History;
-import rubensandreoli.imageorganizer.io.ImageFolder;
+import rubensandreoli.imageorganizer.io.ImageEntry;
 import rubensandreoli.imageorganizer.io.ImageFile;
+import rubensandreoli.imageorganizer.io.ImageFolder;
+import rubensandreoli.imageorganizer.io.ImageLoader;
+import rubensandreoli.imageorganizer.io.ThumbnailLoader;
+import rubensandreoli.imageorganizer.io.TransferJournal;
+import rubensandreoli.imageorganizer.io.TransferQueue;
 
 /**
  * References:
@@ -54,7 +70,7 @@ import rubensandreoli.imageorganizer.io.ImageFile;
  *
  * @author Rubens A. Andreoli Jr.
  */
-public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener, SettingsListener{
+public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener, ImageListener, FilmstripListener, SettingsListener, FolderListener, TransferListener{
     private static final long serialVersionUID = 1L;
 
     // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
@@ -73,16 +89,37 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
             + "were removed!";
     private static final String FOLDER_NAME_TITLE = "Folder Creation";
     private static final String FOLDER_NAME_MSG = "Type the new folder name:";
+    private static final String TRANSFER_FAIL_TITLE = "Operation Failed";
+    private static final String TRANSFER_FAIL_MSG_MASK = "Image \"%s\" couldn't be moved to \"%s\".";
+    private static final String TRANSFER_TITLE_MASK = "%s - Processing %d image(s)";
+    private static final String TRANSFER_SPEED_MASK = " at %s/s";
+    private static final String TRANSFER_PROGRESS_MASK = "%s - Processing %d image(s): moving \"%s\" %d%% at %s/s";
+    private static final int MAX_FAILURES_SHOWN = 10;
     private static final String UNSUPPORTED_TITLE = "Unsupported Operation";
     private static final String UNSUPPORTED_MSG = "<html>Currently, we do not support \"delete to trash\" "
-            + "operations in your system.<br>If you wish to proceed, the current image, "
+            + "operations in your system.<br>If you wish to proceed, the deleted images, "
             + "as well as any other deleted<br>image during this session, will be <b>permanently deleted</b>.</html>";
+    private static final String DELETE_FAIL_MSG_MASK = "Image \"%s\" couldn't be deleted, it may be in use by another program.";
+    private static final int NAVIGATION_DELAY = 150; //ms; held keys repeat faster, so only where they stop is decoded
     // </editor-fold>
 
     private final Settings settings;
     private final History history;
+    private final ImageLoader loader;
+    private final ThumbnailLoader thumbnails;
+    private final TransferQueue transfers;
+    private final List<String> transferFailures = new ArrayList<>();
+    private JOptionPane failuresPane;
+    private JDialog failuresDialog;
+    private FilmstripPanel pnlFilmstrip;
+    private JPanel pnlBottom; //filmstrip and tools
     private ImageFolder imageFolder;
     private int currentPos = -1;
+    private ImageEntry currentImage; //last loaded, to be found again when sorted
+    private ImageEntry decodedImage; //last requested to the loader
+    private final Timer navigationTimer = new Timer(NAVIGATION_DELAY, e -> decodeImage(false));
+    private int resumePos;
+    private String resumeAnchor; //name of the image at resumePos, null if not known
     private boolean deleteAgreed;
 
     @SuppressWarnings("LeakingThisInConstructor")
@@ -91,6 +128,14 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         settings = new Settings();
         settings.setListener(this);
         Logger.log.setVerbose(settings.isDebug());
+        loader = new ImageLoader(settings.getCacheBudget());
+        thumbnails = new ThumbnailLoader(settings.getThumbnailCacheLimit());
+        navigationTimer.setRepeats(false);
+        transfers = new TransferQueue();
+        transfers.setListener(this);
+        
+        //FINISH INTERRUPTED OPERATIONS:
+        TransferJournal.recover();
         
         //LOAD HISTORY:
         history = new History();
@@ -102,6 +147,8 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
 	}
         
         initComponents();
+        pnlImage.setListener(this);
+        initFilmstrip();
         initListeners();
         initSplitPane();
     }
@@ -163,6 +210,11 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
     }// </editor-fold>//GEN-END:initComponents
 
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
+        if(imageFolder != null) imageFolder.close(); //saves its index
+        transfers.flush();
+        TransferJournal.close();
+        FolderIndex.flush();
+        thumbnails.close(); //saves the thumbnails index
         history.save();
         settings.save();
     }//GEN-LAST:event_formWindowClosing
@@ -217,6 +269,9 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
                         case MOVE:
                             moveImage(shortcut.description);
                             break;
+                        case UNDO:
+                            undoDelete();
+                            break;
                     }
                 }
             }
@@ -224,6 +279,15 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         });
     }
     
+    private void initFilmstrip(){ //not in the form, so the generated layout is kept as is
+        pnlFilmstrip = new FilmstripPanel(thumbnails);
+        pnlFilmstrip.setListener(this);
+        pnlBottom = new JPanel(new BorderLayout());
+        pnlBottom.add(pnlFilmstrip, BorderLayout.NORTH);
+        pnlBottom.add(pnlTools, BorderLayout.CENTER);
+        pnlSplit.setRightComponent(pnlBottom);
+    }
+    
     private void initSplitPane(){
         //enable=false & onetouch=true: disables cursor changes of subcomponents, improper solution
         final BasicSplitPaneDivider divider = ((BasicSplitPaneUI) pnlSplit.getUI()).getDivider();
@@ -237,17 +301,17 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         addComponentListener(new ComponentAdapter() { //to fix restore after the frame is resized while minimized 
             @Override
             public void componentResized(ComponentEvent evt) {
-                pnlSplit.setLastDividerLocation(pnlSplit.getHeight() - pnlTools.getHeight());
+                pnlSplit.setLastDividerLocation(pnlSplit.getHeight() - pnlBottom.getHeight());
             }
         });
         btnUp.setVisible(false);
         //button listeners sometimes are not called because expand/minimize behaviour is triggered not by the buttons
         //not sure if after changing the disable drag solution it's still the case, but this approach seems fine
-        pnlTools.addComponentListener(new ComponentAdapter() {
+        pnlBottom.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
-                btnDown.setVisible(pnlTools.getHeight() != 0);
-                btnUp.setVisible(pnlTools.getHeight() == 0);
+                btnDown.setVisible(pnlBottom.getHeight() != 0);
+                btnUp.setVisible(pnlBottom.getHeight() == 0);
             } 
         });
     }
@@ -258,21 +322,28 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
 
     private void loadFolder(String folderPath){
         if(imageFolder != null){ //save position before changing folders
-            history.addEntry(imageFolder.getFolderPath(), currentPos);
+            if(hasImage()) history.addEntry(imageFolder.getFolderPath(), currentPos, imageFolder.getImage(currentPos).getName());
+            imageFolder.close(); //stops scanning if still going
         }
 
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-        imageFolder = new ImageFolder(folderPath, settings.isShowHidden());
-        setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        loader.clear();
+        imageFolder = new ImageFolder(folderPath, settings.isShowHidden(), transfers);
+        imageFolder.setListener(this);
+        pnlFilmstrip.setFolder(imageFolder);
 
-        final int numImages = imageFolder.getNumImages();
         pnlTools.setFolderPath(folderPath);
-        pnlTools.setImageTotal(numImages);
+        pnlTools.setImageTotal(0);
         fillRelatedFolders();
+        pnlImage.clear();
+        pnlTools.setImagePosition(0);
+        pnlTools.setImageName("");
+        pnlTools.setButtonsEnabled(false);
 
-        final int historyPos = history.getPosition(folderPath);
-        currentPos = historyPos >= numImages? 0:historyPos; //old history with more files than actual folder
-        loadImage();
+        currentPos = -1; //until the history position is found
+        resumePos = history.getPosition(folderPath);
+        resumeAnchor = history.getAnchor(folderPath);
+        imageFolder.scan();
     }
 
 
@@ -304,16 +375,59 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
             pnlImage.clear();
             pnlTools.setImagePosition(0);
             pnlTools.setImageName("");
+            navigationTimer.stop();
+            decodedImage = null;
 	}else{
-            setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-            final ImageFile image = imageFolder.loadImage(currentPos);
-            pnlImage.setImage(image);
-            pnlTools.setImageName(image.getPath());
-            pnlTools.setImagePosition(currentPos+1); //0 indexed; for user readability
-            history.addEntry(imageFolder.getFolderPath(), currentPos);
-            setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+            final int pos = currentPos;
+            final ImageEntry entry = imageFolder.getImage(pos);
+            currentImage = entry;
+            pnlTools.setImageName(entry.getPath());
+            pnlTools.setImagePosition(pos+1); //0 indexed; for user readability
+            pnlFilmstrip.setSelected(pos);
+            history.addEntry(imageFolder.getFolderPath(), pos, entry.getName());
+            if(navigationTimer.isRunning() && !loader.getCache().contains(entry)){ //navigating faster than the delay, e.g. holding a key
+                loader.cancelRequested(); //the skipped image isn't decoded, unless preloaded
+                decodedImage = null;
+                final BufferedImage thumbnail = thumbnails.get(entry);
+                final ImageFile preview = thumbnail == null? null : ImageFile.buildPreview(entry, thumbnail);
+                if(preview != null){
+                    preview.setPosition(pos, numImages);
+                    pnlImage.setImage(preview);
+                }else{
+                    pnlImage.clear(); //never showing an image other than the one deletes and moves act on
+                }
+            }else{ //cached ones are shown right away, even while navigating
+                decodeImage(true);
+            }
+            navigationTimer.restart(); //decodes where the navigation stops
 	}
+        updateButtons();
+    }
 
+    /**
+     * @param force decodes even if it's the image last decoded, e.g. if its file changed
+     */
+    private void decodeImage(boolean force){
+        if(!hasImage()) return;
+        final int pos = currentPos;
+        final int numImages = imageFolder.getNumImages();
+        final ImageEntry entry = imageFolder.getImage(pos);
+        if(!force && entry == decodedImage) return; //not navigated since
+        decodedImage = entry;
+        setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        loader.setTargetSize(pnlImage.getWidth(), pnlImage.getHeight());
+        loader.load(entry, image -> {
+            image.setPosition(pos, numImages);
+            if(!image.isPreview() && !image.isFailed()) entry.setDimensions(image.getWidth(), image.getHeight());
+            pnlImage.setImage(image);
+            pnlImage.setStatus(loader.getCache().toString());
+            if(!image.isPreview()) setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        });
+        preloadImages();
+    }
+
+    private void updateButtons(){
+        final int numImages = imageFolder.getNumImages();
         pnlTools.setButtonsEnabled(false);
         if(numImages > 1){
             pnlTools.setButtonsEnabled(true);
@@ -322,6 +436,19 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         }
     }
 
+    private void preloadImages(){ //current image first, then next and previous ones alternately
+        final int numImages = imageFolder.getNumImages();
+        final int next = Math.min(settings.getPreloadNext(), numImages-1);
+        final int previous = Math.min(settings.getPreloadPrevious(), numImages-1-next);
+        final List<ImageEntry> files = new ArrayList<>(1+next+previous);
+        files.add(imageFolder.getImage(currentPos));
+        for (int i = 1; i <= Math.max(next, previous); i++) {
+            if(i <= next) files.add(imageFolder.getImage((currentPos+i) % numImages));
+            if(i <= previous) files.add(imageFolder.getImage((currentPos-i+numImages) % numImages));
+        }
+        loader.preload(files);
+    }
+
     @Override
     public void createRelatedFolder(boolean subfolder) {
         if(imageFolder == null) return; //toolsPanel doesn't know if a folder is set
@@ -360,11 +487,15 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         }
     }
 
+    private boolean hasImage(){ //false while scanning for the history position, or if there are no images
+        return imageFolder != null && currentPos >= 0 && currentPos < imageFolder.getNumImages();
+    }
+
     public void moveImage(String folder){ //shortcuts move
+        if(!hasImage()) return;
         if(ImageFolder.checkFolder(folder)){
             try {
                 imageFolder.transferImageTo(currentPos, folder);
-                imageRemoved();
             } catch (IOException ex) {
                 showException(ex);
             }
@@ -376,10 +507,10 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
 
     @Override
     public void moveImage(String folderName, boolean subfolder) { //toolsPanel move
+        if(!hasImage()) return;
         if(imageFolder.checkRelatedFolder(folderName, subfolder)){
             try {
                 imageFolder.transferImageTo(currentPos, folderName, subfolder);
-                imageRemoved();
             } catch (IOException ex) {
                 showException(ex);
             }
@@ -388,46 +519,180 @@ public class ImageOrganizer extends javax.swing.JFrame implements ToolsListener,
         }
     }
     
-    private void delete(){
-        try {
-            imageFolder.deleteImage(currentPos);
-            imageRemoved();
-        } catch (IOException ex) {
-            showException(ex);
-        }
-    }
-    
     @Override
     public void deleteImage() {
+        if(!hasImage()) return;
         if(deleteAgreed){ //not a good solution but seems to be working
             if(!settings.isShowAlert() || JOptionPane.showConfirmDialog(this, DELETE_ALERT_MSG, DELETE_ALERT_TITLE, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION){
-                delete();
+                imageFolder.deleteImage(currentPos);
             }
         }else{
             if(!settings.isShowAlert() || JOptionPane.showConfirmDialog(this, REMOVE_ALERT_MSG, REMOVE_ALERT_TITLE, JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION){
-                try {
-                    imageFolder.removeImage(currentPos);
-                    imageRemoved();
-                } catch (UnsupportedException exU) {
-                    Logger.log.print(Level.WARNING, exU);
-                    if(JOptionPane.showConfirmDialog(this, UNSUPPORTED_MSG, UNSUPPORTED_TITLE, JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION){
-                        deleteAgreed = true;
-                        delete();                    
-                    }
-                } catch (IOException ex) {
-                    showException(ex);
-                }
+                imageFolder.removeImage(currentPos);
+            }
+        }
+    }
+
+    private void undoDelete(){
+        final int pos = imageFolder.undoDelete();
+        if(pos != -1){
+            currentPos = pos;
+            loadImage();
+        }
+    }
+
+    @Override
+    public void trashUnsupported(List<ImageEntry> images) {
+        if(JOptionPane.showConfirmDialog(this, UNSUPPORTED_MSG, UNSUPPORTED_TITLE, JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION){
+            deleteAgreed = true;
+            transfers.enqueueDelete(images, false);
+        }else if(imageFolder != null){
+            imageFolder.restoreImages(images);
+        }
+    }
+
+    @Override
+    public void deletesFailed(List<ImageEntry> images) {
+        images.forEach(i -> notifyFailure(String.format(DELETE_FAIL_MSG_MASK, i.getName())));
+        if(imageFolder != null) imageFolder.restoreImages(images);
+    }
+
+    @Override
+    public void fullResolutionNeeded(ImageFile image) {
+        if(!hasImage()) return;
+        final ImageEntry entry = imageFolder.getImage(currentPos);
+        if(!entry.getPath().equals(image.getPath())) return; //no longer the current one
+        final int pos = currentPos, total = imageFolder.getNumImages();
+        loader.loadFull(entry, full -> {
+            full.setPosition(pos, total);
+            pnlImage.updateImage(full);
+        });
+    }
+
+    @Override
+    public void thumbnailSelected(int position) {
+        if(imageFolder == null || position >= imageFolder.getNumImages()) return;
+        currentPos = position;
+        loadImage();
+    }
+
+    @Override
+    public void imagesAdded(int index, int amount) {
+        final int numImages = imageFolder.getNumImages();
+        pnlTools.setImageTotal(numImages);
+        pnlFilmstrip.refresh();
+        if(currentPos < 0){ //resumed right away if still in the same position, otherwise searched once sorted
+            if(resumePos < numImages && (resumeAnchor == null? imageFolder.isSorted() : imageFolder.getImage(resumePos).getName().equals(resumeAnchor))){
+                currentPos = resumePos;
+                loadImage();
             }
+        }else if(numImages == amount){ //was empty, e.g. navigated while nothing was found yet
+            loadImage();
+        }else{
+            if(index <= currentPos){ //same image, new position
+                currentPos += amount;
+                pnlTools.setImagePosition(currentPos+1);
+                pnlFilmstrip.setSelected(currentPos);
+            }
+            updateButtons();
+        }
+    }
+
+    @Override
+    public void imagesReordered() {
+        pnlFilmstrip.refresh();
+        if(currentPos < 0 || currentImage == null) return;
+        final int pos = imageFolder.findImage(currentImage.getName());
+        if(pos >= 0){ //same image, new position
+            currentPos = pos;
+            pnlTools.setImagePosition(currentPos+1);
+            pnlFilmstrip.setSelected(currentPos);
+            history.addEntry(imageFolder.getFolderPath(), currentPos, currentImage.getName());
         }
     }
 
-    private void imageRemoved(){
+    @Override
+    public void imageRemoved(int index, ImageEntry image) { //removed from here or externally
+        loader.invalidate(image.getFile());
         final int size = imageFolder.getNumImages();
     	pnlTools.setImageTotal(size);
-        if(currentPos >= size){
-            currentPos = 0;
+        pnlFilmstrip.refresh();
+        if(currentPos < 0){ //still looking for the history position
+            if(index < resumePos) resumePos--;
+        }else if(index < currentPos){ //same image, new position
+            currentPos--;
+            pnlTools.setImagePosition(currentPos+1);
+            pnlFilmstrip.setSelected(currentPos);
+            updateButtons();
+        }else if(index == currentPos){
+            if(currentPos >= size) currentPos = 0;
+            loadImage();
+        }else{
+            updateButtons();
         }
-        loadImage();
+    }
+
+    @Override
+    public void transferFailed(ImageEntry image, String folder) {
+        notifyFailure(String.format(TRANSFER_FAIL_MSG_MASK, image.getName(), folder));
+    }
+
+    private void notifyFailure(String failure){ //not blocking, other operations may still be going
+        if(failuresDialog == null || !failuresDialog.isShowing()) transferFailures.clear();
+        transferFailures.add(failure);
+        if(transferFailures.size() > MAX_FAILURES_SHOWN) transferFailures.remove(0);
+        final String msg = String.join("\n", transferFailures);
+        if(failuresDialog != null && failuresDialog.isShowing()){
+            failuresPane.setMessage(msg);
+            failuresDialog.pack();
+        }else{
+            failuresPane = new JOptionPane(msg, JOptionPane.WARNING_MESSAGE);
+            failuresDialog = failuresPane.createDialog(this, TRANSFER_FAIL_TITLE);
+            failuresDialog.setModal(false);
+            failuresDialog.setVisible(true);
+        }
+    }
+
+    @Override
+    public void transferProgress(ImageEntry image, long transferred, double bytesPerSecond) {
+        if(transfers.getPending() == 0) return; //late report
+        final int percent = (int) (transferred*100 / Math.max(1, image.getSize()));
+        setTitle(String.format(TRANSFER_PROGRESS_MASK, PROGRAM_NAME, transfers.getPending(), image.getName(), percent, ImageFile.formatSize((long) bytesPerSecond)));
+    }
+
+    @Override
+    public void queueChanged(int pending, double bytesPerSecond) {
+        if(pending == 0){
+            setTitle(PROGRAM_NAME);
+        }else{
+            final String speed = bytesPerSecond == 0? "" : String.format(TRANSFER_SPEED_MASK, ImageFile.formatSize((long) bytesPerSecond));
+            setTitle(String.format(TRANSFER_TITLE_MASK, PROGRAM_NAME, pending) + speed);
+        }
+    }
+
+    @Override
+    public void rescanNeeded() {
+        loadFolder(imageFolder.getFolderPath());
+    }
+
+    @Override
+    public void foldersChanged(boolean subfolder) {
+        fillRelatedFolder(subfolder);
+    }
+
+    @Override
+    public void scanFinished() {
+        if(currentPos < 0){ //images added or removed since last time, or no images at all
+            final int numImages = imageFolder.getNumImages();
+            if(resumeAnchor != null){ //sorted now
+                final int pos = imageFolder.findImage(resumeAnchor);
+                currentPos = pos >= 0? pos : Math.min(-pos-1, Math.max(0, numImages-1)); //removed, the one after it
+            }else{
+                currentPos = resumePos < numImages? resumePos : 0;
+            }
+            loadImage();
+        }
+        if(imageFolder.getNumImages() == 0) setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
     }
 
     @Override
@@ -20,20 +20,34 @@ import java.awt.Cursor;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Window;
 import java.awt.event.ActionEvent;
 import java.awt.event.ComponentAdapter;
+import java.awt.event.HierarchyEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.swing.AbstractAction;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import rubensandreoli.commons.utils.FileUtils;
 import rubensandreoli.commons.utils.SwingUtils;
+import rubensandreoli.imageorganizer.gui.support.ImageListener;
 import rubensandreoli.imageorganizer.io.ImageFile;
+import rubensandreoli.imageorganizer.io.TileLoader;
 
 /** References:
  * <br>
@@ -59,17 +73,71 @@ public class ImagePanel extends javax.swing.JPanel {
     private static final int SCALE_X_RECOIL = 75;
     private static final int INFO_LINE_SPACING = 4; //higher = lines are closer
     private static final int TEXT_BOTTOM_PADDING = 1;
+    private static final long MAX_SURFACE_PIXELS = 16*1024*1024; //~64MB; beyond that, scaled on every paint
+    private static final int FRAME_INTERVAL = 16; //ms, about one frame per screen refresh
+    private static final int IDLE_DELAY = 200; //ms without panning or zooming before rendering in high quality
+    private static final int MIN_LEVEL_SIZE = 64; //smallest side of the last pyramid level
+    private static final ExecutorService SCALER = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "image-scaler");
+        t.setDaemon(true);
+        return t;
+    });
     // </editor-fold>
     
     private ImageFile image;
+    private String status;
+    private ImageListener listener;
     private float clickX, clickY, xOffset, yOffset, scale;
-    private boolean click, showInfo;
+    private boolean click, showInfo, fullRequested, tiled;
     private int fontHeight;
+    //copy of the image already scaled, so panning only has to copy it:
+    private BufferedImage surface;
+    private Image surfaceSource;
+    private float surfaceScale;
+    private volatile Image pendingSource; //also checked by the scaler, to skip outdated requests
+    private volatile float pendingScale;
+    //the image halved repeatedly, first level being the image itself:
+    private List<BufferedImage> pyramid;
+    private Image pyramidSource;
+    private volatile Image pendingPyramid;
+    private final TileLoader tiles = new TileLoader(); //instead of the full resolution, if too large
+    //gifs are played frame by frame, only while visible:
+    private final Timer animation = new Timer(0, e -> nextFrame());
+    private final WindowAdapter iconifyListener = new WindowAdapter() {
+        @Override
+        public void windowIconified(WindowEvent e) {
+            iconified = true;
+            updateAnimation();
+        }
+
+        @Override
+        public void windowDeiconified(WindowEvent e) {
+            iconified = false;
+            updateAnimation();
+        }
+    };
+    private int frame;
+    private boolean iconified;
+    //pan and zoom are painted at most once per interval, only where the image was and now is:
+    private final Timer frameTimer = new Timer(FRAME_INTERVAL, e -> paintFrame());
+    private Rectangle paintedBounds; //of the image, when last painted
+    //fast rendering while panning or zooming, high quality once idle:
+    private final Timer idleTimer = new Timer(IDLE_DELAY, e -> {
+        interacting = false;
+        repaint();
+    });
+    private boolean interacting;
+    private String scaleText; //formatted only when the scale changes
+    private float scaleTextScale;
     
     public ImagePanel() {
         super(true); //double buffering
         initComponents();
         addListeners();
+        tiles.setCallback(this::repaint);
+        animation.setRepeats(false); //each frame has its own delay
+        frameTimer.setRepeats(false);
+        idleTimer.setRepeats(false);
     }
 
     @SuppressWarnings("unchecked")
@@ -117,7 +185,7 @@ public class ImagePanel extends javax.swing.JPanel {
 		if(click == true){ 
 		    xOffset = e.getX()-clickX;
 		    yOffset = e.getY()-clickY;
-		    repaint();
+		    requestFrame();
 		}
 	    }
 	});
@@ -129,13 +197,18 @@ public class ImagePanel extends javax.swing.JPanel {
             }
         });
 	
+        addHierarchyListener(e -> {
+            if((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) updateAnimation();
+        });
+	
 	addMouseWheelListener(new MouseWheelListener(){
 	    @Override
 	    public void mouseWheelMoved(MouseWheelEvent e) {
 		float inc = -e.getWheelRotation()/SCALE_RATE;
 		if(scale+inc > 0){
 		    scale += inc;
-		    repaint();
+                    checkResolution();
+		    requestFrame();
 		}
 	    }
 	});
@@ -144,7 +217,8 @@ public class ImagePanel extends javax.swing.JPanel {
             @Override
             public void actionPerformed(ActionEvent e) {
                 scale += 1f/SCALE_RATE;
-                repaint();
+                checkResolution();
+                requestFrame();
             }
         });
         
@@ -154,12 +228,26 @@ public class ImagePanel extends javax.swing.JPanel {
                 final float inc = 1f/SCALE_RATE;
                 if(scale-inc > 0){
                     scale -= inc;
-                    repaint();
+                    requestFrame();
                 }
             }
         });
     }
 
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        final Window window = SwingUtilities.getWindowAncestor(this);
+        if(window != null) window.addWindowListener(iconifyListener);
+    }
+
+    @Override
+    public void removeNotify() {
+        final Window window = SwingUtilities.getWindowAncestor(this);
+        if(window != null) window.removeWindowListener(iconifyListener);
+        super.removeNotify();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
 	super.paintComponent(g);
@@ -167,7 +255,8 @@ public class ImagePanel extends javax.swing.JPanel {
 
 	Graphics2D g2d = (Graphics2D) g;
 //	 g2d.setRenderingHint(RenderingHints.KEY_RENDERING,RenderingHints.VALUE_RENDER_QUALITY); //can't see much difference
-	g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interacting? 
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
 	g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,RenderingHints.VALUE_ANTIALIAS_ON);
 
         String scaleMsg;
@@ -181,14 +270,22 @@ public class ImagePanel extends javax.swing.JPanel {
             );
             scaleMsg = BROKEN_MSG;
         }else{
-            g2d.drawImage(image.getImage(),
-                    (int) xOffset,
-                    (int) yOffset,
-                    (int) (image.getWidth()*scale),
-                    (int) (image.getHeight()*scale),
-                    this
-            );
-            scaleMsg = String.format("%.3fx", scale);
+            final Image source = image.isAnimated()? image.getFrames().getFrame(frame) : image.getImage();
+            if(surface != null && surfaceSource == source && surfaceScale == scale){
+                g2d.drawImage(surface, (int) xOffset, (int) yOffset, null);
+            }else{ //scaled while interacting, or while the surface is built
+                g2d.drawImage(getLevel(source, (int) (image.getWidth()*scale)),
+                        (int) xOffset,
+                        (int) yOffset,
+                        (int) (image.getWidth()*scale),
+                        (int) (image.getHeight()*scale),
+                        this
+                );
+                if(!interacting) requestSurface(source); //intermediate scales aren't worth it
+            }
+            if(tiled) paintTiles(g2d);
+            paintedBounds = getImageBounds();
+            scaleMsg = getScaleText();
         }
         
         g2d.setFont(SCALE_FONT);
@@ -198,6 +295,7 @@ public class ImagePanel extends javax.swing.JPanel {
             g2d.setFont(INFO_FONT);
             if(fontHeight == 0) fontHeight = g.getFontMetrics().getHeight() - INFO_LINE_SPACING;
             int infoY = getHeight()- ImageFile.INFO_SIZE*fontHeight - TEXT_BOTTOM_PADDING;
+            if(status != null) g2d.drawString(status, INFO_X, infoY); //line above the image info
             for (int i = 0; i < ImageFile.INFO_SIZE; i++) {
                 g2d.drawString(image.getInfo(i), INFO_X, infoY += fontHeight);  
             }
@@ -207,15 +305,217 @@ public class ImagePanel extends javax.swing.JPanel {
     }
     
     
+    /**
+     * Draws the visible tiles over the subsampled image, which is shown where they aren't decoded yet.
+     */
+    private void paintTiles(Graphics2D g2d){
+        int sampling = 1; //largest power of two still detailed enough for the scale
+        while(sampling*2*scale <= 1) sampling *= 2;
+        if(sampling < image.getSampling()){ //otherwise, the subsampled image is already enough
+            final int span = TileLoader.TILE_SIZE*sampling;
+            final int firstCol = Math.max(0, (int) (-xOffset/scale) / span);
+            final int lastCol = Math.min((image.getWidth()-1) / span, (int) ((getWidth()-xOffset)/scale) / span);
+            final int firstRow = Math.max(0, (int) (-yOffset/scale) / span);
+            final int lastRow = Math.min((image.getHeight()-1) / span, (int) ((getHeight()-yOffset)/scale) / span);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    final BufferedImage tile = tiles.get(sampling, col, row);
+                    if(tile == null) continue;
+                    final int x = col*span, y = row*span; //original pixels
+                    final int x1 = Math.min(x+span, image.getWidth()), y1 = Math.min(y+span, image.getHeight());
+                    final int dx = Math.round(xOffset + x*scale), dy = Math.round(yOffset + y*scale); //rounded alike, no seams
+                    g2d.drawImage(tile, dx, dy, Math.round(xOffset + x1*scale)-dx, Math.round(yOffset + y1*scale)-dy, null);
+                }
+            }
+        }
+        tiles.retainRequested();
+    }
+
+    /**
+     * Scales the image to the current scale in the background, in high quality: bicubic from the nearest
+     * pyramid level, so large reductions are done in steps. Used from then on while the scale doesn't change.
+     * Only the last request is built.
+     */
+    private void requestSurface(Image source){
+        if(!(source instanceof BufferedImage) || image.isAnimated() || (source == pendingSource && scale == pendingScale)) return; //gifs may be animated
+        final int width = (int) (image.getWidth()*scale);
+        final int height = (int) (image.getHeight()*scale);
+        if(width <= 0 || height <= 0 || (long) width*height > MAX_SURFACE_PIXELS) return;
+        final float requestedScale = scale;
+        final BufferedImage from = (BufferedImage) getLevel(source, width);
+        pendingSource = source;
+        pendingScale = requestedScale;
+        SCALER.execute(() -> {
+            if(pendingSource != source || pendingScale != requestedScale) return; //outdated
+            final BufferedImage scaled = buildSurface(from, width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            SwingUtilities.invokeLater(() -> {
+                if(pendingSource != source || pendingScale != requestedScale) return;
+                surface = scaled;
+                surfaceSource = source;
+                surfaceScale = requestedScale;
+                repaint();
+            });
+        });
+    }
+
+    private static BufferedImage buildSurface(BufferedImage source, int width, int height, Object interpolation){
+        final BufferedImage scaled = new BufferedImage(width, height, source.getColorModel().hasAlpha()? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        final Graphics2D g2d = scaled.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g2d.drawImage(source, 0, 0, width, height, null);
+        g2d.dispose();
+        return scaled;
+    }
+
+    /**
+     * Builds the pyramid of the current image in the background, each level half the size of the previous one.
+     */
+    private void requestPyramid(){
+        final Image source = image.getImage();
+        if(!(source instanceof BufferedImage) || image.isAnimated()) return; //frames are drawn from the image
+        pendingPyramid = source;
+        SCALER.execute(() -> {
+            final List<BufferedImage> levels = new ArrayList<>();
+            BufferedImage level = (BufferedImage) source;
+            levels.add(level);
+            while(level.getWidth()/2 >= MIN_LEVEL_SIZE && level.getHeight()/2 >= MIN_LEVEL_SIZE){
+                if(pendingPyramid != source) return; //outdated
+                level = buildSurface(level, level.getWidth()/2, level.getHeight()/2, RenderingHints.VALUE_INTERPOLATION_BILINEAR); //averages each 2x2 block
+                levels.add(level);
+            }
+            SwingUtilities.invokeLater(() -> {
+                if(pendingPyramid != source) return;
+                pyramid = levels;
+                pyramidSource = source;
+                repaint();
+            });
+        });
+    }
+
+    /**
+     * @return the smallest pyramid level at least as wide as the given width, or the image itself if there's no
+     * pyramid yet
+     */
+    private Image getLevel(Image source, int width){
+        if(pyramid == null || pyramidSource != source) return source;
+        for (int i = pyramid.size()-1; i > 0; i--) {
+            if(pyramid.get(i).getWidth() >= width) return pyramid.get(i);
+        }
+        return source;
+    }
+
+    private void requestFrame(){ //also marks the start of an interaction
+        interacting = true;
+        idleTimer.restart();
+        if(!frameTimer.isRunning()) frameTimer.start();
+    }
+
+    private void paintFrame(){
+        if(image == null || image.isFailed() || paintedBounds == null){
+            repaint();
+            return;
+        }
+        final Rectangle dirty = getImageBounds().union(paintedBounds);
+        if(scale != scaleTextScale){
+            final int textHeight = getFontMetrics(SCALE_FONT).getHeight();
+            dirty.add(new Rectangle(getWidth()-SCALE_X_RECOIL, getHeight()-textHeight, SCALE_X_RECOIL, textHeight));
+        }
+        repaint(dirty);
+    }
+
+    private Rectangle getImageBounds(){
+        return new Rectangle((int) xOffset, (int) yOffset, (int) Math.ceil(image.getWidth()*scale)+1, (int) Math.ceil(image.getHeight()*scale)+1);
+    }
+
+    private String getScaleText(){
+        if(scaleText == null || scale != scaleTextScale){
+            scaleText = String.format("%.3fx", scale);
+            scaleTextScale = scale;
+        }
+        return scaleText;
+    }
+
+    private void nextFrame(){
+        if(image == null || !image.isAnimated()) return;
+        frame = (frame+1) % image.getFrames().getFrameCount();
+        repaint(getImageBounds());
+        updateAnimation();
+    }
+
+    private void updateAnimation(){ //plays while the image is animated and can be seen
+        if(image != null && image.isAnimated() && isShowing() && !iconified){
+            if(!animation.isRunning()){
+                animation.setInitialDelay(image.getFrames().getDelay(frame));
+                animation.start();
+            }
+        }else{
+            animation.stop();
+        }
+    }
+
+    private void clearSurface(){ //frees its memory right away
+        surface = null;
+        surfaceSource = null;
+        pendingSource = null;
+        pyramid = null;
+        pyramidSource = null;
+        pendingPyramid = null;
+    }
+
+    /**
+     * Shows the image fitted to the panel, unless it replaces the preview of the same image, in which case zoom
+     * and position are kept.
+     */
     public void setImage(ImageFile image) {
         if(image != null){
+            final boolean refining = this.image != null && this.image.isPreview() && this.image.getPath().equals(image.getPath())
+                    && this.image.getWidth() == image.getWidth() && this.image.getHeight() == image.getHeight(); //else fitted again
             this.image = image;
-            fit();
+            clearSurface();
+            requestPyramid();
+            frame = 0;
+            updateAnimation();
+            if(refining){
+                checkResolution();
+                repaint();
+            }else{
+                fullRequested = false;
+                tiled = false;
+                tiles.clear();
+                fit();
+            }
         }else{
             clear();
         }
     }
 
+    /**
+     * Swaps the current image for another decoding of the same file, keeping zoom and position.
+     */
+    public void updateImage(ImageFile image) {
+        if(this.image != null && image != null && this.image.getPath().equals(image.getPath())){
+            this.image = image;
+            clearSurface();
+            requestPyramid();
+            frame = 0;
+            updateAnimation();
+            repaint();
+        }
+    }
+
+    private void checkResolution(){ //subsampled images are decoded again once zoomed past their resolution
+        if(!fullRequested && image != null && !image.isPreview() && image.isSubsampled() && scale*image.getSampling() > 1){
+            if(TileLoader.isTooLarge(image)){ //only the visible part, from then on
+                fullRequested = true;
+                tiled = true;
+                tiles.setImage(image);
+            }else if(listener != null){
+                fullRequested = true;
+                listener.fullResolutionNeeded(image);
+            }
+        }
+    }
+
     private void fit(){
 	if(image == null) return; //null if double click or resize when empty
 	if(getHeight() < getWidth()){ //scale or reduce to fit
@@ -230,9 +530,23 @@ public class ImagePanel extends javax.swing.JPanel {
     
     public void clear(){
 	image = null;
+        paintedBounds = null;
+        clearSurface();
+        tiled = false;
+        tiles.clear();
+        animation.stop();
 	repaint();
     }
 
+    public void setListener(ImageListener listener) {
+        this.listener = listener;
+    }
+
+    public void setStatus(String status) { //shown along with the image info
+        this.status = status;
+        if(showInfo) repaint();
+    }
+
     public void toggleShowInfo() {
         this.showInfo = !this.showInfo;
         repaint();
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import javax.imageio.ImageIO;
+
+/**
+ * Reads the JPEG thumbnail embedded in the EXIF segment of camera pictures, which the JDK's JPEG reader
+ * ignores. Only the APP1 segment is read, so it costs a few KB of I/O no matter the image size.
+ * <br>
+ * References:
+ * <br>
+ * https://www.media.mit.edu/pia/Research/deepview/exif.html<br>
+ * https://www.cipa.jp/std/documents/e/DC-008-2012_E.pdf
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ExifThumbnail {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final int SOI = 0xFFD8;
+    private static final int APP1 = 0xFFE1;
+    private static final int SOS = 0xFFDA;
+    private static final int EXIF_HEADER = 0x45786966; //"Exif"
+    private static final int TIFF_HEADER_OFFSET = 6; //"Exif\0\0"
+    private static final short LITTLE_ENDIAN = 0x4949; //"II"
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    // </editor-fold>
+
+    private ExifThumbnail(){}
+
+    /**
+     * @return the thumbnail, or null if the file has none
+     */
+    public static BufferedImage read(File file) throws IOException{
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(in.readUnsignedShort() != SOI) return null;
+            while(true){
+                final int marker = in.readUnsignedShort();
+                final int length = in.readUnsignedShort() - 2;
+                if(marker == SOS || (marker >> 8) != 0xFF || length < 0) return null; //no more metadata
+                if(marker == APP1){
+                    final byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    final BufferedImage thumbnail = parse(segment);
+                    if(thumbnail != null) return thumbnail; //may also be a XMP segment
+                }else{
+                    skip(in, length);
+                }
+            }
+        }
+    }
+
+    private static BufferedImage parse(byte[] segment) throws IOException{
+        final ByteBuffer buffer = ByteBuffer.wrap(segment);
+        if(segment.length < TIFF_HEADER_OFFSET + 8 || buffer.getInt(0) != EXIF_HEADER) return null;
+        final ByteBuffer tiff = ByteBuffer.wrap(segment, TIFF_HEADER_OFFSET, segment.length - TIFF_HEADER_OFFSET).slice();
+        tiff.order(tiff.getShort(0) == LITTLE_ENDIAN? ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN);
+        try{
+            final int ifd0 = tiff.getInt(4);
+            final int ifd0Entries = tiff.getShort(ifd0) & 0xFFFF;
+            final int ifd1 = tiff.getInt(ifd0 + 2 + ifd0Entries*IFD_ENTRY_SIZE);
+            if(ifd1 == 0) return null; //thumbnail is always in the second IFD
+            final int ifd1Entries = tiff.getShort(ifd1) & 0xFFFF;
+            int offset = 0, length = 0;
+            for (int i = 0; i < ifd1Entries; i++) {
+                final int entry = ifd1 + 2 + i*IFD_ENTRY_SIZE;
+                final int tag = tiff.getShort(entry) & 0xFFFF;
+                if(tag == TAG_THUMBNAIL_OFFSET) offset = tiff.getInt(entry + 8);
+                else if(tag == TAG_THUMBNAIL_LENGTH) length = tiff.getInt(entry + 8);
+            }
+            if(offset <= 0 || length <= 0 || offset + length > tiff.limit()) return null;
+            return ImageIO.read(new ByteArrayInputStream(segment, TIFF_HEADER_OFFSET + offset, length));
+        }catch(IndexOutOfBoundsException ex){ //corrupted or unexpected metadata
+            return null;
+        }
+    }
+
+    private static void skip(InputStream in, long n) throws IOException{
+        while(n > 0){
+            final long skipped = in.skip(n);
+            if(skipped <= 0) throw new IOException("unexpected end of file");
+            n -= skipped;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import rubensandreoli.commons.utils.FileUtils;
+
+/**
+ * Moves a file to another folder, renaming it if both are on the same file store, or copying it and then
+ * deleting the source otherwise.
+ * <br>
+ * Copies go straight from one channel to the other, which most systems do without passing the data through
+ * the program, into a temporary file in the destination. It's only renamed to the final name once everything
+ * is on disk, so a move interrupted midway never leaves a truncated image behind, only a ".part" file.
+ * <br>
+ * References:
+ * <br>
+ * https://docs.oracle.com/javase/8/docs/api/java/nio/channels/FileChannel.html#transferTo-long-long-java.nio.channels.WritableByteChannel-
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class FileTransfer {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final String PART_EXTENSION = ".part";
+    private static final long CHUNK_SIZE = 8*1024*1024; //progress is reported after each one
+    // </editor-fold>
+
+    private FileTransfer(){}
+
+    /**
+     * @return where the file would be moved to in the folder, with a number added to its name if there's already
+     * a file with the same name there
+     */
+    public static File resolveTarget(File source, String folder) throws IOException{
+        final Path dir = new File(folder).toPath();
+        if(!Files.isDirectory(dir)) throw new IOException("Destination folder \""+folder+"\" doesn't exist!");
+        return findAvailable(dir, source.getName()).toFile();
+    }
+
+    /**
+     * @param target usually from {@link #resolveTarget(File, String)}
+     * @param progress called from the calling thread with the bytes copied so far; not called when renamed
+     * @return where the file ended up, the next available name if another file took the target meanwhile
+     */
+    public static File move(File source, File target, LongConsumer progress) throws IOException{
+        final Path from = source.toPath();
+        final Path to = target.toPath();
+        if(Files.getFileStore(from).equals(Files.getFileStore(to.getParent()))){
+            return rename(from, to, source.getName()).toFile();
+        }
+        final Path moved = copy(from, to, progress);
+        Files.delete(from);
+        return moved.toFile();
+    }
+
+    public static File getPartFile(File target){
+        return new File(target.getPath() + PART_EXTENSION);
+    }
+
+    private static Path copy(Path from, Path to, LongConsumer progress) throws IOException{
+        final Path part = getPartFile(to.toFile()).toPath();
+        try{
+            try(FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+                    FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+                final long size = in.size();
+                long position = 0;
+                while(position < size){
+                    final long transferred = in.transferTo(position, Math.min(CHUNK_SIZE, size-position), out);
+                    if(transferred <= 0 && in.size() <= position) break; //source shrank meanwhile
+                    position += transferred;
+                    progress.accept(position);
+                }
+                if(position != in.size()) throw new IOException("Source \""+from+"\" changed while being copied!");
+                out.force(true); //on disk before the source is gone
+            }
+            Files.setLastModifiedTime(part, Files.getLastModifiedTime(from));
+            return rename(part, to, from.getFileName().toString());
+        }catch(IOException ex){
+            Files.deleteIfExists(part);
+            throw ex;
+        }
+    }
+
+    /**
+     * Renames without ever replacing a file, as one may have taken the target since it was resolved; the next
+     * available name is taken instead.
+     */
+    private static Path rename(Path from, Path to, String name) throws IOException{
+        while(true){
+            try{
+                return Files.move(from, to); //unlike an atomic move, fails if the target exists
+            }catch(FileAlreadyExistsException ex){
+                to = findAvailable(to.getParent(), name);
+            }
+        }
+    }
+
+    private static Path findAvailable(Path dir, String name){
+        Path path = dir.resolve(name);
+        final int extensionStart = name.length() - FileUtils.getExtension(name).length();
+        final String base = name.substring(0, extensionStart), extension = name.substring(extensionStart);
+        for (int i = 1; Files.exists(path); i++) {
+            path = dir.resolve(base + " (" + i + ")" + extension);
+        }
+        return path;
+    }
+
+}
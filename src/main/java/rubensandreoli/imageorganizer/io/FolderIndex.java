@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+
+/**
+ * Listing of a folder saved to disk, so large folders can be shown again without being listed first.
+ * <br>
+ * The index is only valid while the folder's modification time, which changes whenever an entry is added,
+ * removed or renamed, is the same as right before it was listed. Even so, it should be checked in the background against
+ * a new listing, as files modified in place don't change it.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class FolderIndex {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final File DIRECTORY = new File("index"); //along with history.log
+    private static final String EXTENSION = ".idx";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAGIC = 0x494F4958; //"IOIX"
+    private static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final int MIN_IMAGES = 500; //smaller folders are listed fast enough
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "index-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    // </editor-fold>
+
+    private final List<ImageEntry> images;
+    private final List<String> subFolders;
+    private final List<String> rootFolders;
+
+    private FolderIndex(List<ImageEntry> images, List<String> subFolders, List<String> rootFolders) {
+        this.images = images;
+        this.subFolders = subFolders;
+        this.rootFolders = rootFolders;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public List<ImageEntry> getImages() {
+        return images;
+    }
+
+    public List<String> getSubFolders() {
+        return subFolders;
+    }
+
+    public List<String> getRootFolders() {
+        return rootFolders;
+    }
+    // </editor-fold>
+
+    /**
+     * @return the saved index, or null if there is none or it's no longer valid
+     */
+    public static FolderIndex read(File folder, boolean showHidden){
+        final File file = getIndexFile(folder);
+        if(!file.isFile()) return null;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            if(!in.readUTF().equals(folder.getPath()) || in.readBoolean() != showHidden) return null;
+            if(in.readLong() != folder.lastModified()) return null; //changed since saved
+            final List<String> subFolders = readNames(in);
+            final List<String> rootFolders = readNames(in);
+            final int size = in.readInt();
+            final List<ImageEntry> images = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                images.add(readImage(folder, in));
+            }
+            return new FolderIndex(images, subFolders, rootFolders);
+        }catch(IOException ex){ //corrupted or from an older version
+            Logger.log.print(Level.WARNING, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index in the background. The collections are copied, so it can be called from the EDT.
+     *
+     * @param modified folder's modification time read before listing it, so anything changed since then
+     * invalidates the index
+     */
+    public static void save(File folder, long modified, boolean showHidden, Collection<ImageEntry> images, Collection<String> subFolders, Collection<String> rootFolders){
+        if(images.size() < MIN_IMAGES) return;
+        final List<ImageEntry> imagesCopy = new ArrayList<>(images);
+        final List<String> subCopy = new ArrayList<>(subFolders);
+        final List<String> rootCopy = new ArrayList<>(rootFolders);
+        WRITER.execute(() -> write(folder, modified, showHidden, imagesCopy, subCopy, rootCopy));
+    }
+
+    /**
+     * Waits for pending saves to finish, should be called before exiting.
+     */
+    public static void flush(){
+        WRITER.shutdown();
+        try {
+            WRITER.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write(File folder, long modified, boolean showHidden, List<ImageEntry> images, List<String> subFolders, List<String> rootFolders){
+        final File file = getIndexFile(folder);
+        final File temp = new File(DIRECTORY, file.getName()+TEMP_EXTENSION);
+        if(!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) return;
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(folder.getPath());
+            out.writeBoolean(showHidden);
+            out.writeLong(modified);
+            writeNames(out, subFolders);
+            writeNames(out, rootFolders);
+            out.writeInt(images.size());
+            for (ImageEntry image : images) {
+                out.writeUTF(image.getName());
+                out.writeLong(image.getSize());
+                out.writeLong(image.getModified());
+                out.writeInt(image.getWidth());
+                out.writeInt(image.getHeight());
+                out.writeUTF(image.getFormat() == null? "":image.getFormat());
+                out.writeInt(image.getFrames());
+            }
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            temp.delete();
+            return;
+        }
+        try{ //never leave a half written index behind
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            temp.delete();
+        }
+    }
+
+    private static ImageEntry readImage(File folder, DataInputStream in) throws IOException{
+        final File file = new File(folder, in.readUTF());
+        final long size = in.readLong(), modified = in.readLong();
+        final int width = in.readInt(), height = in.readInt();
+        final String format = in.readUTF();
+        return new ImageEntry(file, size, modified, width, height, format.isEmpty()? null:format, in.readInt());
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException{
+        final int size = in.readInt();
+        final List<String> names = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) names.add(in.readUTF());
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException{
+        out.writeInt(names.size());
+        for (String name : names) out.writeUTF(name);
+    }
+
+    private static File getIndexFile(File folder){
+        return new File(DIRECTORY, UUID.nameUUIDFromBytes(folder.getPath().getBytes(StandardCharsets.UTF_8)) + EXTENSION);
+    }
+
+}
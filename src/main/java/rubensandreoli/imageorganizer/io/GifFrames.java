@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.NodeList;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+
+/**
+ * Frames of a GIF, each already composed over the previous ones as the format's disposal methods say, so playing
+ * it is only drawing one frame after the other.
+ * <br>
+ * References:
+ * <br>
+ * https://www.w3.org/Graphics/GIF/spec-gif89a.txt<br>
+ * https://docs.oracle.com/javase/8/docs/api/javax/imageio/metadata/doc-files/gif_metadata.html
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class GifFrames {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final String IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+    private static final String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    private static final int MIN_DELAY = 20; //ms; lower is played slower, as browsers do
+    private static final int DEFAULT_DELAY = 100; //ms
+    private static final long MAX_BYTES = 256*1024*1024; //beyond that, only the first frame is kept
+    // </editor-fold>
+
+    private final List<BufferedImage> frames;
+    private final int[] delays;
+    private final int width, height;
+
+    private GifFrames(List<BufferedImage> frames, List<Integer> delays, int width, int height) {
+        this.frames = frames;
+        this.delays = delays.stream().mapToInt(Integer::intValue).toArray();
+        this.width = width;
+        this.height = height;
+    }
+
+    public static GifFrames read(File file) throws IOException{
+        try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = input == null? null:ImageIO.getImageReaders(input);
+            if(readers == null || !readers.hasNext()) throw new IOException("unsupported image codification");
+            final ImageReader reader = readers.next();
+            try{
+                reader.setInput(input, false, false);
+                return read(reader);
+            }finally{
+                reader.dispose();
+            }
+        }
+    }
+
+    private static GifFrames read(ImageReader reader) throws IOException{
+        final Rectangle screen = readScreen(reader);
+        final BufferedImage canvas = new BufferedImage(screen.width, screen.height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = canvas.createGraphics();
+        final List<BufferedImage> frames = new ArrayList<>();
+        final List<Integer> delays = new ArrayList<>();
+        final long frameBytes = (long) screen.width * screen.height * Integer.BYTES;
+        try{
+            for (int i = 0; ; i++) {
+                final BufferedImage frame;
+                try{
+                    frame = reader.read(i);
+                }catch(IndexOutOfBoundsException ex){ //no more frames
+                    break;
+                }
+                final IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree(IMAGE_FORMAT);
+                final IIOMetadataNode descriptor = getNode(root, "ImageDescriptor");
+                final IIOMetadataNode control = getNode(root, "GraphicControlExtension");
+                final Rectangle area = new Rectangle(
+                        getInt(descriptor, "imageLeftPosition"), getInt(descriptor, "imageTopPosition"),
+                        frame.getWidth(), frame.getHeight()
+                ).intersection(new Rectangle(screen.width, screen.height));
+                final String disposal = control == null? "none" : control.getAttribute("disposalMethod");
+                final BufferedImage previous = disposal.equals("restoreToPrevious") && !area.isEmpty()? 
+                        copy(canvas.getSubimage(area.x, area.y, area.width, area.height)) : null;
+
+                g2.drawImage(frame, area.x, area.y, null);
+                if((long) (frames.size()+1) * frameBytes > MAX_BYTES){ //too long to be kept, shown still
+                    frames.subList(1, frames.size()).clear();
+                    delays.subList(1, delays.size()).clear();
+                    break;
+                }
+                frames.add(ImageFile.copyCompatible(canvas));
+                final int delay = control == null? 0 : getInt(control, "delayTime")*10; //hundredths
+                delays.add(delay < MIN_DELAY? DEFAULT_DELAY : delay);
+
+                if(disposal.equals("restoreToBackgroundColor")){ //as browsers, transparent instead of the color
+                    g2.setComposite(AlphaComposite.Clear);
+                    g2.fillRect(area.x, area.y, area.width, area.height);
+                    g2.setComposite(AlphaComposite.SrcOver);
+                }else if(previous != null){
+                    g2.setComposite(AlphaComposite.Src);
+                    g2.drawImage(previous, area.x, area.y, null);
+                    g2.setComposite(AlphaComposite.SrcOver);
+                }
+            }
+        }catch(IOException | RuntimeException ex){ //malformed frame, shown up to it
+            if(frames.isEmpty()) throw ex;
+            Logger.log.print(Level.WARNING, ex);
+        }finally{
+            g2.dispose();
+        }
+        if(frames.isEmpty()) throw new IOException("gif has no frames");
+        return new GifFrames(frames, delays, screen.width, screen.height);
+    }
+
+    private static Rectangle readScreen(ImageReader reader) throws IOException{ //logical screen the frames are drawn on
+        final IIOMetadata metadata = reader.getStreamMetadata();
+        if(metadata != null){
+            final IIOMetadataNode descriptor = getNode((IIOMetadataNode) metadata.getAsTree(STREAM_FORMAT), "LogicalScreenDescriptor");
+            if(descriptor != null){
+                final int width = getInt(descriptor, "logicalScreenWidth");
+                final int height = getInt(descriptor, "logicalScreenHeight");
+                if(width > 0 && height > 0) return new Rectangle(width, height);
+            }
+        }
+        return new Rectangle(reader.getWidth(0), reader.getHeight(0));
+    }
+
+    private static IIOMetadataNode getNode(IIOMetadataNode root, String name){
+        final NodeList nodes = root.getElementsByTagName(name);
+        return nodes.getLength() == 0? null : (IIOMetadataNode) nodes.item(0);
+    }
+
+    private static int getInt(IIOMetadataNode node, String attribute){
+        try{
+            return node == null? 0 : Integer.parseInt(node.getAttribute(attribute));
+        }catch(NumberFormatException ex){
+            return 0;
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage image){
+        final BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g2 = copy.createGraphics();
+        g2.setComposite(AlphaComposite.Src);
+        g2.drawImage(image, 0, 0, null);
+        g2.dispose();
+        return copy;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    public BufferedImage getFrame(int i) {
+        return frames.get(i);
+    }
+
+    /**
+     * @return how long the frame is shown, in milliseconds
+     */
+    public int getDelay(int i) {
+        return delays[i];
+    }
+
+    public long getBytes(){
+        return (long) width * height * Integer.BYTES * frames.size();
+    }
+    // </editor-fold>
+
+}
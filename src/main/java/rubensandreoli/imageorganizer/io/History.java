@@ -16,60 +16,282 @@
  */
 package rubensandreoli.imageorganizer.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
 
+/**
+ * Last position of each folder, along with the name of the image there, kept in an append-only binary log.
+ * <br>
+ * Changes are appended in the background every few seconds, so a crash loses at most those seconds instead of
+ * the whole session, and exiting doesn't rewrite everything. The last record of a folder is the one that counts;
+ * once the log has many more records than folders it's rewritten with one record each.
+ * <br>
+ * The older text history is imported the first time, and then removed.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
 public class History {
-    
+
     // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
-    private static final String FILENAME = "history.log";
-    private static final String SEPARATOR = ";";
+    private static final String FILENAME = "history.dat";
+    private static final String LEGACY_FILENAME = "history.log";
+    private static final String LEGACY_SEPARATOR = ";";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAGIC = 0x494F4849; //"IOHI"
+    private static final int VERSION = 2; //1 had no anchor
+    private static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final int FLUSH_INTERVAL = 10; //seconds
+    private static final int MIN_COMPACT_RECORDS = 1000;
     // </editor-fold>
-    
+
+    private static class Record{
+
+        private final String folder;
+        private final int pos;
+        private final String anchor; //name of the image at pos, empty if not known
+
+        private Record(String folder, int pos, String anchor) {
+            this.folder = folder;
+            this.pos = pos;
+            this.anchor = anchor;
+        }
+
+        private boolean isEmpty(){ //removes the folder, as it'd start from the first image anyway
+            return pos <= 0 && anchor.isEmpty();
+        }
+
+    }
+
     private final File file = new File(FILENAME);
-    private final Map<String, Integer> history = new HashMap<>();
+    private final Map<String, Record> history = new ConcurrentHashMap<>(); //also copied by the writer when compacting
+    private final List<Record> pending = new ArrayList<>(); //guarded by itself
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "history-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private int version = VERSION; //of the file read
+    //writer only:
+    private DataOutputStream out;
+    private int records;
+    private boolean compactNeeded; //after a failure, so nothing is appended to a partial record
 
     public void load() throws IOException{
-	if(!file.exists() || file.isDirectory()){
-	    file.createNewFile(); //preemptive warning, failure here means it won't be able to save
-            return;
-	}
-	try(BufferedReader br = new BufferedReader(new FileReader(FILENAME))){
+        try{
+            final File legacy = new File(LEGACY_FILENAME);
+            if(!file.isFile() && legacy.isFile()){
+                loadLegacy(legacy);
+                compact(); //preemptive warning, failure here means it won't be able to save
+                if(!legacy.delete()) Logger.log.print(Level.WARNING, new IOException("failed removing "+LEGACY_FILENAME));
+            }else if(file.isFile()){
+                final long valid = read();
+                if(valid < file.length()){ //torn record from a crash
+                    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)){
+                        channel.truncate(valid);
+                    }
+                }
+                if(valid == 0 || version < VERSION) compact(); //not even a valid header, or to be appended in the new one
+            }else{
+                compact();
+            }
+        }catch(IOException ex){
+            compactNeeded = true; //the file can't be trusted to be appended to
+            throw ex;
+        }finally{ //changes made from now on are still saved, if the file can be written later
+            writer.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return where the last complete record ends, or 0 if the header isn't valid
+     */
+    private long read() throws IOException{
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))){
+            if(in.readInt() != MAGIC) return 0;
+            version = in.readInt();
+            if(version < 1 || version > VERSION) return 0;
+            long valid = HEADER_SIZE;
+            while(true){
+                final String folder, anchor;
+                final int pos;
+                try{
+                    folder = in.readUTF();
+                    pos = in.readInt();
+                    anchor = version > 1? in.readUTF() : "";
+                }catch(EOFException ex){
+                    return valid;
+                }
+                final Record record = new Record(folder, pos, anchor);
+                if(record.isEmpty()) history.remove(folder);
+                else history.put(folder, record);
+                records++;
+                valid += 2 + utfLength(folder) + Integer.BYTES + (version > 1? 2 + utfLength(anchor) : 0);
+            }
+        }catch(EOFException ex){ //shorter than the header
+            return 0;
+        }
+    }
+
+    private void loadLegacy(File legacy) throws IOException{
+	try(BufferedReader br = new BufferedReader(new FileReader(legacy))){
 	    String line;
 	    while((line = br.readLine()) != null){
-	       final String[] tokens = line.split(SEPARATOR);
-	       history.put(tokens[0], Integer.parseInt(tokens[1]));
+               final int separator = line.lastIndexOf(LEGACY_SEPARATOR);
+               if(separator == -1) continue;
+               try{
+                   final String folder = line.substring(0, separator);
+                   history.put(folder, new Record(folder, Integer.parseInt(line.substring(separator+1).trim()), ""));
+               }catch(NumberFormatException ex){
+                   Logger.log.print(Level.WARNING, ex);
+               }
 	    }
 	}
     }
-    
+
+    /**
+     * Writes the pending changes and stops writing in the background, should be called before exiting.
+     */
     public boolean save(){
-	try(BufferedWriter br = new BufferedWriter(new FileWriter(FILENAME))){
-	    for(Map.Entry<String, Integer> e : history.entrySet()){
-               final StringBuilder sb = new StringBuilder(e.getKey()).append(SEPARATOR).append(e.getValue());
-	       br.write(sb.toString());
-               br.newLine();
-	    }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(FLUSH_INTERVAL, TimeUnit.SECONDS); //a flush may be running
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        final boolean saved = flush();
+        if(out != null){
+            try {
+                out.close();
+            } catch (IOException ex) {
+                Logger.log.print(Level.WARNING, ex);
+            }
+            out = null;
+        }
+        return saved;
+    }
+
+    private synchronized boolean flush(){ //writer, or the EDT once the writer is done
+        final List<Record> toWrite;
+        synchronized(pending){
+            if(pending.isEmpty()) return true;
+            toWrite = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try{
+            if(compactNeeded || (records > MIN_COMPACT_RECORDS && records > history.size()*2)){
+                compact(); //already includes what would be written
+                return true;
+            }
+            if(out == null) out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+            for (Record record : toWrite) write(out, record);
+            out.flush();
+            records += toWrite.size();
             return true;
-	}catch(IOException ex){ //if can't save, probably can't log
+        }catch(IOException ex){ //if can't save, probably can't log
+            closeQuietly();
+            compactNeeded = true; //may have been partially written
+            synchronized(pending){ //so the next flush still happens, and save() knows it failed
+                pending.addAll(0, toWrite);
+            }
             return false;
         }
     }
-    
-    public void addEntry(String folder, int pos){
-        if(pos > 0) history.put(folder, pos);
-        else history.remove(folder);
+
+    private void closeQuietly(){
+        if(out == null) return;
+        try{
+            out.close();
+        }catch(IOException ex){}
+        out = null;
+    }
+
+    /**
+     * Rewrites the log with a single record per folder.
+     */
+    private synchronized void compact() throws IOException{
+        if(out != null){
+            out.close();
+            out = null;
+        }
+        final File temp = new File(FILENAME+TEMP_EXTENSION);
+        int written = 0;
+        try(DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))){
+            tempOut.writeInt(MAGIC);
+            tempOut.writeInt(VERSION);
+            for (Record record : history.values()) {
+                write(tempOut, record);
+                written++;
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = written;
+        compactNeeded = false;
+    }
+
+    private static void write(DataOutputStream out, Record record) throws IOException{
+        out.writeUTF(record.folder);
+        out.writeInt(record.pos);
+        out.writeUTF(record.anchor);
+    }
+
+    private static int utfLength(String s){ //as in DataOutputStream.writeUTF
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F) length++;
+            else if(c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * @param anchor name of the image at the position, so it can be found even if other images were added or
+     * removed meanwhile; null if not known
+     */
+    public void addEntry(String folder, int pos, String anchor){
+        final Record record = new Record(folder, Math.max(0, pos), anchor == null? "":anchor);
+        final Record old = record.isEmpty()? history.remove(folder) : history.put(folder, record);
+        if(old == null? record.isEmpty() : old.pos == record.pos && old.anchor.equals(record.anchor)) return; //nothing changed
+        synchronized(pending){
+            pending.add(record);
+        }
     }
 
     public int getPosition(String folder){
-	final Integer pos = history.get(folder);
-	return pos == null ? 0 : pos;
+	final Record record = history.get(folder);
+	return record == null ? 0 : record.pos;
     }
-    
+
+    /**
+     * @return name of the image last seen in the folder, or null if not known
+     */
+    public String getAnchor(String folder){
+	final Record record = history.get(folder);
+	return record == null || record.anchor.isEmpty()? null : record.anchor;
+    }
+
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used cache of decoded images, limited by the memory their pixels take instead of by the
+ * number of entries.
+ * <br>
+ * Entries are looked up by path, but only hit if the file's modification time and size, as listed in the
+ * folder, are still the same as when it was decoded.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ImageCache {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final double MEGABYTE = 1024*1024;
+    // </editor-fold>
+
+    private static class Entry{
+
+        private final long modified, size;
+        private final ImageFile image;
+
+        private Entry(long modified, long size, ImageFile image) {
+            this.modified = modified;
+            this.size = size;
+            this.image = image;
+        }
+
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); //access order
+    private final long budget;
+    private long used;
+    private int hits, misses;
+
+    public ImageCache(long budget) {
+        this.budget = budget;
+    }
+
+    public ImageFile get(ImageEntry image){
+        final Entry entry = entries.get(image.getPath());
+        if(entry != null){
+            if(entry.modified == image.getModified() && entry.size == image.getSize()){
+                hits++;
+                return entry.image;
+            }
+            remove(image.getFile()); //changed on disk
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Unlike {@link #get(ImageEntry)}, doesn't count as a hit or a miss; it does count as recently used, so the
+     * images preloaded around the current one are the last to be evicted.
+     */
+    public boolean contains(ImageEntry image){
+        final Entry entry = entries.get(image.getPath());
+        return entry != null && entry.modified == image.getModified() && entry.size == image.getSize();
+    }
+
+    public void put(ImageEntry entry, ImageFile image){
+        final long bytes = image.getBytes();
+        if(image.isFailed() || bytes > budget) return; //failed may be temporary, e.g. file still being copied
+        remove(entry.getFile());
+        entries.put(entry.getPath(), new Entry(entry.getModified(), entry.getSize(), image));
+        used += bytes;
+        final Iterator<Entry> i = entries.values().iterator();
+        while(used > budget && i.hasNext()){
+            used -= i.next().image.getBytes();
+            i.remove();
+        }
+    }
+
+    public void remove(File file){
+        final Entry entry = entries.remove(file.getPath());
+        if(entry != null) used -= entry.image.getBytes();
+    }
+
+    public void clear(){
+        entries.clear();
+        used = 0;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    public long getUsed() {
+        return used;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+    // </editor-fold>
+
+    @Override
+    public String toString() {
+        return String.format("Cache: %d hits, %d misses, %.1f of %.1f MB", hits, misses, used/MEGABYTE, budget/MEGABYTE);
+    }
+
+}
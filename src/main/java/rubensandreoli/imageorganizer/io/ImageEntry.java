@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+
+/**
+ * Image found in a folder, with the attributes read while listing it, so they never have to be read from the
+ * disk again.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ImageEntry {
+
+    private final File file;
+    private final long size, modified;
+    private volatile int width, height; //0 if not known yet
+    private volatile String format; //null if not known yet
+    private volatile int frames;
+
+    public ImageEntry(File file, long size, long modified) {
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    public ImageEntry(File file, long size, long modified, int width, int height, String format, int frames) {
+        this(file, size, modified);
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.frames = frames;
+    }
+
+    public boolean isSameFile(ImageEntry entry){ //same name, size and modification time
+        return entry.getName().equals(getName()) && entry.size == size && entry.modified == modified;
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" SETTERS ">
+    public void setDimensions(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public void setProbe(ImageProbe probe){
+        format = probe.getFormat();
+        frames = probe.getFrames();
+        setDimensions(probe.getWidth(), probe.getHeight());
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public File getFile() {
+        return file;
+    }
+
+    public String getPath() {
+        return file.getPath();
+    }
+
+    public String getName() {
+        return file.getName();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    public boolean hasDimensions() {
+        return width > 0 && height > 0;
+    }
+    // </editor-fold>
+
+}
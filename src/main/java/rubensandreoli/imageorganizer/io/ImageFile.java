@@ -16,14 +16,25 @@
  */
 package rubensandreoli.imageorganizer.io;
 
+import java.awt.Color;
 import java.awt.Desktop;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Iterator;
 import javax.imageio.ImageIO;
-import javax.swing.ImageIcon;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import rubensandreoli.commons.others.Level;
 import rubensandreoli.commons.others.Logger;
 import rubensandreoli.commons.utils.FileUtils;
@@ -45,6 +56,9 @@ public class ImageFile {
     private static final int SIZE_INDEX = 3;
     private static final int POSITION_INDEX = 4;
     public static final int INFO_SIZE = 5;
+    private static final int KILOBYTE = 1024;
+    private static final int PREVIEW_DIVISOR = 4; //preview resolution relative to the target size
+    private static final float MAX_ASPECT_DIFFERENCE = 0.02f; //thumbnails are sometimes letterboxed
     public static final HashSet<String> IMAGES_EXT = new HashSet<>();
     static {
 	IMAGES_EXT.add(".jpg");
@@ -57,19 +71,22 @@ public class ImageFile {
     // </editor-fold>
     
     private Image image;
+    private GifFrames gif; //null if not a gif
 
     private final String path;
     private int height, width;
-    private boolean failed;
+    private int sampling = 1;
+    private long bytes;
+    private boolean failed, preview;
     
     private final String[] info;
     
-    private ImageFile(File file){
-        path = file.getPath();
+    private ImageFile(ImageEntry entry){
+        path = entry.getPath();
         info = new String[INFO_SIZE];
         info[NAME_INDEX] = "Name: " + FileUtils.getFilename(path);
         info[EXTENSION_INDEX] = "Extension: " + FileUtils.getExtension(path); 
-        info[SIZE_INDEX] = "Size: " + FileUtils.getFormattedFileSize(file);
+        info[SIZE_INDEX] = "Size: " + formatSize(entry.getSize()); //already known, no need to ask the disk
     }
     
     public void locateOnDisk(){
@@ -101,15 +118,20 @@ public class ImageFile {
     // <editor-fold defaultstate="collapsed" desc=" SETTERS ">
     private void setImage(Image image){
         this.image = image;
+        if(image instanceof BufferedImage){
+            final DataBuffer buffer = ((BufferedImage) image).getRaster().getDataBuffer();
+            bytes = (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / Byte.SIZE;
+        }
     }
     
     private void setDimensions(int width, int height){
         this.width = width;
         this.height = height;
+        if(bytes == 0) bytes = (long) width * height * Integer.BYTES; //toolkit images are kept as int pixels
         info[DIMENSIONS_INDEX] = "Dimensions: " + (width==0? "?":width) + "x" + (height==0? "?":height);
     }
     
-    private void setPosition(int pos, int total){
+    public void setPosition(int pos, int total){
         info[POSITION_INDEX] = "Position: " + ++pos + " of " + total;
     }
     
@@ -136,6 +158,40 @@ public class ImageFile {
         return image;
     }
 
+    /**
+     * @return frames of the animation, or null if it's not a gif
+     */
+    public GifFrames getFrames() {
+        return gif;
+    }
+
+    public boolean isAnimated() {
+        return gif != null && gif.getFrameCount() > 1;
+    }
+
+    public int getSampling() { //1 = full resolution
+        return sampling;
+    }
+
+    public boolean isPreview() { //not meant to be kept, only shown until the actual decoding is done
+        return preview;
+    }
+
+    public boolean isSubsampled() {
+        return sampling > 1;
+    }
+
+    /**
+     * Whether the decoded resolution is enough to be fitted to the given size.
+     */
+    public boolean fits(int maxWidth, int maxHeight) {
+        return failed || sampling <= calcSampling(width, height, maxWidth, maxHeight);
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
     public boolean isFailed() {
         return failed;
     }
@@ -145,44 +201,223 @@ public class ImageFile {
     }
     // </editor-fold>
 
-    public static ImageFile build(File file, int pos, int total){
-        final ImageFile image = new ImageFile(file);
-        image.setPosition(pos, total);
+    public static ImageFile build(ImageEntry entry){
+        return build(entry, 0, 0);
+    }
+
+    /**
+     * @return the image shown as broken, for when decoding failed unexpectedly
+     */
+    public static ImageFile buildFailed(ImageEntry entry){
+        final ImageFile image = new ImageFile(entry);
+        image.setFailed();
+        return image;
+    }
+
+    /**
+     * Decodes the image subsampled to the smallest resolution that still fits the given size, or in full
+     * resolution if size is 0. Dimensions are always the original ones, read from the header.
+     */
+    public static ImageFile build(ImageEntry entry, int maxWidth, int maxHeight){
+        final File file = entry.getFile();
+        final ImageFile image = new ImageFile(entry);
         if(FileUtils.getExtension(file.getPath()).endsWith(".gif")){
             try{
-                final ImageIcon iconImage = new ImageIcon(file.getPath());
-                final Image i = iconImage.getImage();
-                if(i != null){
-                    image.setImage(i);
-                    image.setDimensions(iconImage.getIconWidth(), iconImage.getIconHeight());
-                }else{
-                    image.setFailed();
-                    Logger.log.print(Level.WARNING, new IOException("failed loading gif"));
-                }
-            }catch (SecurityException ex) {//if can't access
+                final GifFrames gif = GifFrames.read(file);
+                image.gif = gif;
+                image.setImage(gif.getFrame(0));
+                image.bytes = gif.getBytes();
+                image.setDimensions(gif.getWidth(), gif.getHeight());
+            }catch (IOException | RuntimeException ex) {//can't read or malformed
                 image.setFailed();
                 Logger.log.print(Level.WARNING, ex);
             }
         }else{
-            try {
-                final BufferedImage bImage = ImageIO.read(file);
-                if(bImage != null){
-                    image.setImage(bImage);
-                    image.setDimensions(bImage.getWidth(), bImage.getHeight());
-                }else{
-                    image.setFailed();
-                    Logger.log.print(Level.WARNING, new IOException("unsupported image codification"));
+            decode(image, file, maxWidth, maxHeight, false);
+            image.toCompatible();
+        }
+        return image;
+    }
+    
+    /**
+     * Quickly decodes a low resolution version of the image, using the embedded EXIF thumbnail if it has the
+     * same aspect ratio, or heavily subsampling it otherwise.
+     * 
+     * @return the preview, or null if the format isn't supported
+     */
+    public static ImageFile buildPreview(ImageEntry entry, int maxWidth, int maxHeight){
+        final File file = entry.getFile();
+        if(FileUtils.getExtension(file.getPath()).endsWith(".gif")) return null;
+        final ImageFile image = new ImageFile(entry);
+        image.preview = true;
+        decode(image, file, maxWidth/PREVIEW_DIVISOR, maxHeight/PREVIEW_DIVISOR, true);
+        image.toCompatible();
+        return image.failed? null:image;
+    }
+
+    /**
+     * Wraps an already generated thumbnail as a preview, e.g. to be shown while navigating too fast for the
+     * images to be decoded.
+     * 
+     * @return the preview, or null if the image dimensions aren't known yet, as it'd be fitted as if it were
+     * the thumbnail size
+     */
+    public static ImageFile buildPreview(ImageEntry entry, BufferedImage thumbnail){
+        if(!entry.hasDimensions()) return null;
+        final ImageFile image = new ImageFile(entry);
+        image.preview = true;
+        image.setImage(thumbnail);
+        image.setDimensions(entry.getWidth(), entry.getHeight());
+        image.sampling = Math.max(1, image.width/thumbnail.getWidth());
+        return image;
+    }
+
+    /**
+     * Decodes a small version of the image, the same way as the preview, scaled down to fit a square of the
+     * given size.
+     * 
+     * @return the thumbnail, or null if it couldn't be decoded
+     */
+    public static BufferedImage buildThumbnail(ImageEntry entry, int size){
+        final ImageFile image = new ImageFile(entry);
+        decode(image, entry.getFile(), size, size, true);
+        if(image.failed || !(image.image instanceof BufferedImage)) return null;
+        final BufferedImage decoded = (BufferedImage) image.image;
+        final double scale = Math.min(1, Math.min(size/(double)decoded.getWidth(), size/(double)decoded.getHeight()));
+        final int width = Math.max(1, (int) Math.round(decoded.getWidth()*scale));
+        final int height = Math.max(1, (int) Math.round(decoded.getHeight()*scale));
+        final BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB); //no alpha, so it can be saved as jpeg
+        final Graphics2D g2 = thumbnail.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.setColor(Color.WHITE); //transparent background, as in the panel
+        g2.fillRect(0, 0, width, height);
+        g2.drawImage(decoded, 0, 0, width, height, null);
+        g2.dispose();
+        return thumbnail;
+    }
+
+    private static void decode(ImageFile image, File file, int maxWidth, int maxHeight, boolean thumbnail){
+        try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = input == null? null:ImageIO.getImageReaders(input);
+            if(readers != null && readers.hasNext()){
+                final ImageReader reader = readers.next();
+                try{
+                    reader.setInput(input, true, true);
+                    final int width = reader.getWidth(0);
+                    final int height = reader.getHeight(0);
+                    if(thumbnail && reader.getFormatName().equalsIgnoreCase("jpeg")){
+                        BufferedImage exif;
+                        try{
+                            exif = ExifThumbnail.read(file);
+                        }catch(IOException ex){ //unusual metadata, decoded as any other image
+                            Logger.log.print(Level.WARNING, ex);
+                            exif = null;
+                        }
+                        if(exif != null && Math.abs(exif.getWidth()/(float)exif.getHeight() - width/(float)height) < MAX_ASPECT_DIFFERENCE){
+                            image.setImage(exif);
+                            image.setDimensions(width, height);
+                            image.sampling = Math.max(1, width/exif.getWidth());
+                            return;
+                        }
+                    }
+                    final int sampling = calcSampling(width, height, maxWidth, maxHeight);
+                    final ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(sampling, sampling, 0, 0);
+                    image.setImage(reader.read(0, param));
+                    image.setDimensions(width, height);
+                    image.sampling = sampling;
+                }finally{
+                    reader.dispose();
                 }
-            } catch (IOException ex) { //can't read or failure reading
+            }else{
                 image.setFailed();
-                Logger.log.print(Level.WARNING, ex);
+                Logger.log.print(Level.WARNING, new IOException("unsupported image codification"));
             }
+        } catch (IOException ex) { //can't read or failure reading
+            image.setFailed();
+            Logger.log.print(Level.WARNING, ex);
+        }
+    }
+    
+    /**
+     * Decodes only the given region of the image, subsampled.
+     * 
+     * @return the region, or null if it couldn't be decoded
+     */
+    public static BufferedImage decodeRegion(File file, Rectangle region, int sampling){
+        try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = input == null? null:ImageIO.getImageReaders(input);
+            if(readers == null || !readers.hasNext()) throw new IOException("unsupported image codification");
+            final ImageReader reader = readers.next();
+            try{
+                reader.setInput(input, true, true);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(sampling, sampling, 0, 0);
+                return toCompatible(reader.read(0, param));
+            }finally{
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException ex) { //region outside, if the file changed
+            Logger.log.print(Level.WARNING, ex);
+            return null;
         }
-        return image;
+    }
+    
+    private void toCompatible(){
+        if(image instanceof BufferedImage) setImage(toCompatible((BufferedImage) image));
+    }
+
+    /**
+     * Copies the image to the pixel layout of the screen, if not already in it, so drawing it is a plain copy
+     * instead of a per pixel conversion, whatever the file format (e.g. 3 byte BGR, indexed, 16 bit, CMYK).
+     */
+    private static BufferedImage toCompatible(BufferedImage image){
+        final boolean alpha = image.getColorModel().hasAlpha();
+        if(GraphicsEnvironment.isHeadless()){
+            if(image.getType() == (alpha? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB)) return image;
+        }else{
+            final GraphicsConfiguration config = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+            if(image.getColorModel().equals(config.getColorModel(alpha? Transparency.TRANSLUCENT : Transparency.OPAQUE))) return image;
+        }
+        return copyCompatible(image);
+    }
+
+    /**
+     * Same as {@link #toCompatible(BufferedImage)}, but always a copy.
+     */
+    static BufferedImage copyCompatible(BufferedImage image){
+        final boolean alpha = image.getColorModel().hasAlpha();
+        final BufferedImage compatible;
+        if(GraphicsEnvironment.isHeadless()){
+            compatible = new BufferedImage(image.getWidth(), image.getHeight(), alpha? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB);
+        }else{
+            final GraphicsConfiguration config = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+            compatible = config.createCompatibleImage(image.getWidth(), image.getHeight(), alpha? Transparency.TRANSLUCENT : Transparency.OPAQUE);
+        }
+        final Graphics2D g2 = compatible.createGraphics();
+        g2.drawImage(image, 0, 0, null);
+        g2.dispose();
+        return compatible;
+    }
+
+    private static int calcSampling(int width, int height, int maxWidth, int maxHeight){
+        if(maxWidth <= 0 || maxHeight <= 0) return 1;
+        return Math.max(1, Math.min(width/maxWidth, height/maxHeight));
+    }
+    
+    public static String formatSize(long bytes){
+        if(bytes < KILOBYTE) return bytes + " B";
+        final int unit = (int) (Math.log(bytes) / Math.log(KILOBYTE));
+        return String.format("%.1f %sB", bytes / Math.pow(KILOBYTE, unit), "KMGTPE".charAt(unit-1));
     }
     
     public static boolean isImage(File file){
-        return IMAGES_EXT.contains(FileUtils.getExtension(file.getPath()));
+        return isImage(file.getName());
+    }
+
+    public static boolean isImage(String filename){
+        return IMAGES_EXT.contains(FileUtils.getExtension(filename));
     }
     
 }
@@ -18,12 +18,42 @@ package rubensandreoli.imageorganizer.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
-import rubensandreoli.commons.exceptions.UnsupportedException;
+import java.util.concurrent.ExecutionException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
 import rubensandreoli.commons.utils.FileUtils;
+import rubensandreoli.imageorganizer.io.support.FolderListener;
+import rubensandreoli.imageorganizer.io.support.GapList;
 
 /** 
  * References:
@@ -35,29 +65,400 @@ import rubensandreoli.commons.utils.FileUtils;
  */
 public class ImageFolder {
     
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS "> 
+    private static final int COMMIT_DELAY = 5000; //ms without deleting
+    // </editor-fold>
+
+    private static class Staged{
+
+        private final ImageEntry image;
+        private final boolean trash;
+
+        private Staged(ImageEntry image, boolean trash) {
+            this.image = image;
+            this.trash = trash;
+        }
+
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" SCANNER "> 
+    private static class Found{
+
+        private final ImageEntry image;
+        private final String folder;
+        private final boolean rootFolder, indexed;
+
+        private Found(ImageEntry image, boolean indexed) {
+            this.image = image;
+            folder = null;
+            rootFolder = false;
+            this.indexed = indexed;
+        }
+
+        private Found(String folder, boolean rootFolder, boolean indexed) {
+            image = null;
+            this.folder = folder;
+            this.rootFolder = rootFolder;
+            this.indexed = indexed;
+        }
+
+    }
+
+    /**
+     * Lists the folder and its parent in the background, handing what is found to the EDT in batches.
+     * <br>
+     * Attributes are read once per entry, already including the hidden flag where the file system keeps it
+     * as an attribute; on Windows they even come along with the listing itself.
+     * <br>
+     * If there is a valid {@link FolderIndex}, it's handed over first, and the listing that follows only adds,
+     * replaces or, once it's done, removes what changed since it was saved.
+     */
+    private class Scanner extends SwingWorker<Void, Found>{
+
+        private final boolean dos = FileSystems.getDefault().supportedFileAttributeViews().contains("dos");
+        private volatile boolean delta;
+        private volatile long modified; //folder's, before listing
+        //EDT only:
+        private final Map<String, ImageEntry> unseen = new HashMap<>();
+        private final Set<String> seenFolders = new HashSet<>(), seenRootFolders = new HashSet<>();
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            modified = folder.lastModified(); //anything changed after it must invalidate the index
+            final FolderIndex index = FolderIndex.read(folder, showHidden);
+            if(index != null){
+                delta = true;
+                index.getImages().forEach(i -> publish(new Found(i, true)));
+                index.getSubFolders().forEach(f -> publish(new Found(f, false, true)));
+                index.getRootFolders().forEach(f -> publish(new Found(f, true, true)));
+            }
+            list(folder, false);
+            if(root != null) list(root, true);
+            return null;
+        }
+
+        private void list(File dir, boolean foldersOnly){
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())){
+                for (Path path : stream) {
+                    if(isCancelled()) return;
+                    final BasicFileAttributes attributes;
+                    try{
+                        attributes = dos? Files.readAttributes(path, DosFileAttributes.class) : Files.readAttributes(path, BasicFileAttributes.class);
+                    }catch(IOException ex){ //removed meanwhile or not accessible
+                        continue;
+                    }
+                    final String name = path.getFileName().toString();
+                    if(!showHidden && (dos? ((DosFileAttributes) attributes).isHidden() : name.startsWith("."))) continue;
+                    if(attributes.isDirectory()){
+                        publish(new Found(name, foldersOnly, false));
+                    }else if(!foldersOnly && attributes.isRegularFile() && ImageFile.isImage(name)){
+                        publish(new Found(new ImageEntry(path.toFile(), attributes.size(), attributes.lastModifiedTime().toMillis()), false));
+                    }
+                }
+            }catch(IOException | DirectoryIteratorException ex){
+                Logger.log.print(Level.WARNING, ex);
+            }
+        }
+
+        @Override
+        protected void process(List<Found> chunks) {
+            if(isCancelled()) return;
+            final int from = images.size();
+            boolean subChanged = false, rootChanged = false;
+            for (Found found : chunks) {
+                if(found.image != null){
+                    if(stagedNames.contains(found.image.getName())) continue; //deleted, not committed yet
+                    if(found.indexed){ //saved sorted
+                        images.add(found.image);
+                        unseen.put(found.image.getName(), found.image);
+                    }else if(!delta){
+                        images.add(found.image);
+                        sorted = false;
+                    }else{
+                        final ImageEntry indexed = unseen.remove(found.image.getName());
+                        if(indexed == null){ //new
+                            images.add(found.image);
+                            sorted = false;
+                        }else if(!indexed.isSameFile(found.image)){ //modified in place
+                            final int i = images.indexOf(indexed);
+                            if(i != -1) images.set(i, found.image);
+                        }
+                    }
+                }else{
+                    if(delta && !found.indexed) (found.rootFolder? seenRootFolders:seenFolders).add(found.folder);
+                    if(found.rootFolder) rootChanged |= rootFolders.add(found.folder);
+                    else subChanged |= subFolders.add(found.folder);
+                }
+            }
+            if(listener == null) return;
+            if(images.size() > from) listener.imagesAdded(from, images.size()-from);
+            if(subChanged) listener.foldersChanged(true);
+            if(rootChanged) listener.foldersChanged(false);
+        }
+
+        @Override
+        protected void done() {
+            if(isCancelled()) return;
+            if(delta) removeUnseen();
+            sortImages(); //listed in whatever order the file system keeps them
+            scanning = false; //so the buffered changes go to their sorted positions
+            saveIndex();
+            changes.forEach(c -> applyChange(c.kind, c.inRoot, c.name)); //happened while scanning
+            changes.clear();
+            if(listener != null) listener.scanFinished();
+            prober = new Prober();
+            prober.execute();
+        }
+
+        private void removeUnseen(){
+            final Set<ImageEntry> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+            removed.addAll(unseen.values());
+            for (int i = images.size()-1; i >= 0 && !removed.isEmpty(); i--) {
+                final ImageEntry image = images.get(i);
+                if(removed.remove(image)){
+                    images.remove(i);
+                    fireImageRemoved(i, image);
+                }
+            }
+            //folders may have been created meanwhile:
+            final boolean subChanged = subFolders.removeIf(f -> !seenFolders.contains(f) && !new File(folder, f).isDirectory());
+            final boolean rootChanged = root != null && rootFolders.removeIf(f -> !seenRootFolders.contains(f) && !new File(root, f).isDirectory());
+            if(listener == null) return;
+            if(subChanged) listener.foldersChanged(true);
+            if(rootChanged) listener.foldersChanged(false);
+        }
+
+    }
+
+    /**
+     * Reads the dimensions of the images that don't have them yet from their headers, in parallel, saving the
+     * index again once done, so they are known for free the next time the folder is opened.
+     */
+    private class Prober extends SwingWorker<Integer, Void>{
+
+        private final List<ImageEntry> toProbe = new ArrayList<>(); //the list itself must only be used in the EDT
+
+        private Prober() {
+            images.stream().filter(i -> !i.hasDimensions()).forEach(toProbe::add);
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            return toProbe.isEmpty()? 0 : ImageProbe.probeAll(toProbe, this::isCancelled);
+        }
+
+        @Override
+        protected void done() {
+            if(isCancelled()) return;
+            try {
+                if(get() > 0) saveIndex();
+            } catch (InterruptedException | ExecutionException ex) {
+                Logger.log.print(Level.WARNING, ex);
+            }
+        }
+
+    }
+    // </editor-fold>
+
+    // <editor-fold defaultstate="collapsed" desc=" WATCHER "> 
+    private static class Change{
+
+        private final WatchEvent.Kind<?> kind;
+        private final boolean inRoot;
+        private final String name;
+
+        private Change(WatchEvent.Kind<?> kind, boolean inRoot, String name) {
+            this.kind = kind;
+            this.inRoot = inRoot;
+            this.name = name;
+        }
+
+    }
+
+    /**
+     * Waits for changes made to the folder and its parent by other programs, handing them to the EDT, so the
+     * listing is kept up to date without scanning it again.
+     * <br>
+     * References:
+     * <br>
+     * https://docs.oracle.com/javase/tutorial/essential/io/notification.html
+     */
+    private class Watcher extends Thread{
+
+        private final WatchService service;
+        private final WatchKey folderKey;
+
+        private Watcher() throws IOException {
+            super("folder-watcher");
+            setDaemon(true);
+            service = FileSystems.getDefault().newWatchService();
+            try{
+                folderKey = folder.toPath().register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                if(root != null) root.toPath().register(service, ENTRY_CREATE, ENTRY_DELETE);
+            }catch(IOException | RuntimeException ex){
+                service.close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void run() {
+            try{
+                while(true){
+                    final WatchKey key = service.take();
+                    final boolean inRoot = key != folderKey;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if(event.kind() == OVERFLOW){ //too many changes at once, events were lost
+                            SwingUtilities.invokeLater(() -> {
+                                if(listener != null) listener.rescanNeeded();
+                            });
+                        }else{
+                            final Change change = new Change(event.kind(), inRoot, event.context().toString());
+                            SwingUtilities.invokeLater(() -> applyChange(change));
+                        }
+                    }
+                    if(!key.reset() && !inRoot){ //folder no longer accessible
+                        SwingUtilities.invokeLater(() -> {
+                            if(listener != null) listener.rescanNeeded();
+                        });
+                        return;
+                    }
+                }
+            }catch(InterruptedException | ClosedWatchServiceException ex){} //closed
+        }
+
+        private void close(){
+            try {
+                service.close();
+            } catch (IOException ex) {
+                Logger.log.print(Level.WARNING, ex);
+            }
+        }
+
+    }
+
+    private void applyChange(Change change){
+        if(closed) return;
+        if(isScanning()) changes.add(change); //applied once the scanner is done, so nothing is added twice
+        else applyChange(change.kind, change.inRoot, change.name);
+    }
+
+    private void applyChange(WatchEvent.Kind<?> kind, boolean inRoot, String name){
+        if(!inRoot && stagedNames.contains(name)) return;
+        final File file = new File(inRoot? root:folder, name);
+        if(inRoot){
+            final boolean changed = kind == ENTRY_CREATE?
+                    file.isDirectory() && (showHidden || !file.isHidden()) && rootFolders.add(name) :
+                    rootFolders.remove(name);
+            if(changed && listener != null) listener.foldersChanged(false);
+            return;
+        }
+
+        final int index = indexOf(name);
+        if(kind == ENTRY_DELETE){
+            if(index != -1){
+                fireImageRemoved(index, images.remove(index));
+            }else if(subFolders.remove(name) && listener != null){
+                listener.foldersChanged(true);
+            }
+            return;
+        }
+
+        final BasicFileAttributes attributes;
+        try{
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        }catch(IOException ex){ //already gone, a delete event follows
+            return;
+        }
+        if(!showHidden && file.isHidden()) return;
+        if(attributes.isDirectory()){
+            if(subFolders.add(name) && listener != null) listener.foldersChanged(true);
+        }else if(attributes.isRegularFile() && ImageFile.isImage(name)){
+            final ImageEntry image = new ImageEntry(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+            if(index == -1){
+                addImage(image);
+            }else if(!images.get(index).isSameFile(image)){ //still being written, or overwritten
+                images.set(index, image);
+            }
+        }
+    }
+
+    private int indexOf(String name){
+        if(!isScanning()) return Math.max(-1, findImage(name)); //sorted
+        for (int i = 0; i < images.size(); i++) {
+            if(images.get(i).getName().equals(name)) return i;
+        }
+        return -1;
+    }
+    // </editor-fold>
+    
     private final File folder;
     private final File root;
     
     private final Collection<String> rootFolders;
     private final Collection<String> subFolders;
-    private final List<File> images;
+    private final List<ImageEntry> images;
+    private final boolean showHidden;
+    private final TransferQueue transfers;
+    private FolderListener listener;
+    private Scanner scanner;
+    private Prober prober;
+    private Watcher watcher;
+    private final List<Change> changes = new ArrayList<>();
+    private final Deque<Staged> staged = new ArrayDeque<>(); //last first
+    private final Set<String> stagedNames = new HashSet<>(); //still on disk, must not be found again
+    private final Timer commitTimer = new Timer(COMMIT_DELAY, e -> commitDeletes());
+    private boolean closed;
+    private boolean scanning; //until sorted, not the worker state, which is done before process() and done() run
+    private boolean sorted = true; //false while the scanner is appending images in listing order
     
-    public ImageFolder(String folderPath, boolean showHidden){
+    public ImageFolder(String folderPath, boolean showHidden, TransferQueue transfers){
 	rootFolders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
 	subFolders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
-	images = new LinkedList<>();
+	images = new GapList<>(); //positional access, see GapList
 	
 	folder = new File(folderPath);
 	root = folder.getParentFile();
-	
-        FileUtils.visitChildren(folder, FileUtils.FILES_AND_DIRECTORIES, showHidden, f -> {
-            if(f.isDirectory()) {
-                subFolders.add(f.getName());
-            }else{
-                if(ImageFile.isImage(f)) images.add(f);
-            }
-        });
-        FileUtils.visitChildren(root, FileUtils.DIRECTORIES_ONLY, showHidden, f -> rootFolders.add(f.getName()));
+        this.showHidden = showHidden;
+        this.transfers = transfers;
+        commitTimer.setRepeats(false);
+    }
+
+    /**
+     * Starts listing the folder in the background; found images and folders are added, and reported to the
+     * listener, from the EDT as they are found. Once done, images are sorted by name, and kept sorted.
+     */
+    public void scan(){
+        if(scanner != null) return;
+        try{ //before listing, so no change is missed
+            watcher = new Watcher();
+            watcher.start();
+        }catch(IOException | RuntimeException ex){ //e.g. not supported by the file system, refreshing still works
+            Logger.log.print(Level.WARNING, ex);
+        }
+        scanning = true;
+        scanner = new Scanner();
+        scanner.execute();
+    }
+
+    /**
+     * Stops scanning and reporting to the listener, saving the index if it was completely listed, and commits
+     * the staged deletes.
+     */
+    public void close(){
+        if(scanner != null){
+            if(scanner.isDone() && !scanner.isCancelled()) saveIndex();
+            else scanner.cancel(false);
+        }
+        if(prober != null) prober.cancel(false);
+        if(watcher != null) watcher.close();
+        commitDeletes();
+        listener = null;
+        closed = true;
+    }
+
+    private void saveIndex(){
+        FolderIndex.save(folder, scanner.modified, showHidden, images, subFolders, rootFolders); //only once listed
     }
  
     public void createRelatedFolder(String folderName, boolean subfolder) throws IOException{
@@ -80,22 +481,80 @@ public class ImageFolder {
 	}
     }
     
-    public ImageFile loadImage(int imagePos) {
-	return ImageFile.build(images.get(imagePos), imagePos, images.size());
-    }
-    
     public void transferImageTo(int imagePos, String folderName, boolean subfolder) throws IOException{
         transferImageTo(imagePos, buildRelatedFolderPath(folderName, subfolder));
     }
 
+    /**
+     * Removes the image right away and queues it to be moved; if moving fails, it's added back in its sorted position.
+     */
     public void transferImageTo(int imagePos, String folder) throws IOException{
-        final File file = images.get(imagePos);
+        final ImageEntry image = images.get(imagePos);
+        final File file = image.getFile();
         if(file.getParent().equals(folder))
             throw new IOException("Move destination is the same as the origin!");
-        if(FileUtils.moveFileTo(file, folder)){
-            images.remove(imagePos);
+        images.remove(imagePos);
+        fireImageRemoved(imagePos, image);
+        transfers.enqueue(image, folder, () -> restoreImage(image));
+    }
+
+    private void restoreImage(ImageEntry image){
+        if(closed || !image.getFile().getParentFile().equals(folder) || !image.getFile().isFile() || indexOf(image.getName()) != -1) return; //gone, or found again
+        addImage(image);
+    }
+
+    /**
+     * Adds the image in its sorted position, or at the end while scanning, as it's sorted once done.
+     * 
+     * @return where it was added
+     */
+    private int addImage(ImageEntry image){
+        int index = images.size();
+        if(isScanning()){
+            sorted = false;
         }else{
-            throw new IOException("Image could not be moved to destination!\n"+folder);
+            index = findImage(image.getName());
+            if(index < 0) index = -index-1;
+        }
+        images.add(index, image);
+        if(listener != null) listener.imagesAdded(index, 1);
+        return index;
+    }
+
+    /**
+     * Binary search by name; only valid once scanning is done.
+     *
+     * @return the image position if found, or (-(insertion point) - 1) otherwise, as in
+     * {@link Collections#binarySearch(List, Object)}
+     */
+    public int findImage(String name){
+        int low = 0, high = images.size()-1;
+        while(low <= high){
+            final int mid = (low + high) >>> 1;
+            final int cmp = compareNames(images.get(mid).getName(), name);
+            if(cmp < 0) low = mid + 1;
+            else if(cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    private static int compareNames(String name1, String name2){ //same order as the folder lists, then by case
+        final int cmp = String.CASE_INSENSITIVE_ORDER.compare(name1, name2);
+        return cmp != 0? cmp : name1.compareTo(name2);
+    }
+
+    private void sortImages(){
+        sorted = true;
+        for (int i = 1; i < images.size(); i++) {
+            if(compareNames(images.get(i-1).getName(), images.get(i).getName()) > 0){
+                final List<ImageEntry> byName = new ArrayList<>(images);
+                byName.sort((i1, i2) -> compareNames(i1.getName(), i2.getName()));
+                images.clear();
+                images.addAll(byName);
+                if(listener != null) listener.imagesReordered();
+                return;
+            }
         }
     }
 
@@ -103,16 +562,68 @@ public class ImageFolder {
         return new File((subfolder? folder:root), folderName).getPath();
     }
     
-    public void removeImage(int imagePos) throws UnsupportedException, IOException {
-        final File image = images.get(imagePos);
-        if(FileUtils.removeFile(image)) images.remove(imagePos);
-        else throw new IOException("Image \""+image.getPath()+"\" could not be deleted!\nIt may be in use by another program or it no longer exists.");
+    /**
+     * Hides the image right away, but only sends it to the trash once the deletes are committed; until then it
+     * can be undone.
+     */
+    public void removeImage(int imagePos){
+        stageDelete(imagePos, true);
     }
-    
-    public void deleteImage(int imagePos) throws IOException {
-	final File image = images.get(imagePos);
-        if(FileUtils.deleteFile(image)) images.remove(imagePos);
-        else throw new IOException("Image \""+image.getPath()+"\" could not be deleted!\nIt may be in use by another program or it no longer exists.");
+
+    /**
+     * Same as {@link #removeImage(int)}, but deleting the image permanently.
+     */
+    public void deleteImage(int imagePos){
+        stageDelete(imagePos, false);
+    }
+
+    private void stageDelete(int imagePos, boolean trash){
+        final ImageEntry image = images.remove(imagePos);
+        staged.push(new Staged(image, trash));
+        stagedNames.add(image.getName());
+        fireImageRemoved(imagePos, image);
+        commitTimer.restart(); //deletes in a row are committed together
+    }
+
+    /**
+     * Puts the last staged image back.
+     *
+     * @return its position, or -1 if there was nothing to undo
+     */
+    public int undoDelete(){
+        final Staged last = staged.poll();
+        if(last == null) return -1;
+        stagedNames.remove(last.image.getName());
+        return addImage(last.image);
+    }
+
+    /**
+     * Queues the staged deletes to be done in the background, as a single batch for each kind.
+     */
+    public void commitDeletes(){
+        commitTimer.stop();
+        if(staged.isEmpty()) return;
+        final List<ImageEntry> trash = new ArrayList<>(), delete = new ArrayList<>();
+        staged.descendingIterator().forEachRemaining(s -> (s.trash? trash:delete).add(s.image)); //in order
+        staged.clear();
+        stagedNames.clear();
+        if(!trash.isEmpty()) transfers.enqueueDelete(trash, true);
+        if(!delete.isEmpty()) transfers.enqueueDelete(delete, false);
+    }
+
+    /**
+     * Adds back images that couldn't be moved or deleted, if they belong to this folder.
+     */
+    public void restoreImages(Collection<ImageEntry> images){
+        images.forEach(this::restoreImage);
+    }
+
+    private void fireImageRemoved(int index, ImageEntry image){
+        if(listener != null) listener.imageRemoved(index, image);
+    }
+
+    public void setListener(FolderListener listener){
+        this.listener = listener;
     }
 
     // <editor-fold defaultstate="collapsed" desc=" GETTERS "> 
@@ -124,6 +635,22 @@ public class ImageFolder {
         return subFolders;
     }
     
+    public ImageEntry getImage(int imagePos){
+        return images.get(imagePos);
+    }
+    
+    /**
+     * Whether the images are in their final order, as while only the saved index was handed over, so positions
+     * can already be trusted.
+     */
+    public boolean isSorted(){
+        return sorted;
+    }
+
+    public boolean isScanning(){
+        return scanning;
+    }
+
     public int getNumImages(){
         return images.size();
     }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+
+/**
+ * Decodes images on a worker pool, keeping the images around the current position already decoded in an
+ * {@link ImageCache}.
+ * <br>
+ * Every method is expected to be called from the EDT; workers only run {@link ImageFile#build(ImageEntry)} and hand
+ * the result back to the EDT, so no other state is shared between threads.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ImageLoader {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final int MAX_THREADS = 4;
+    private static final String THREAD_NAME = "image-loader";
+    private static final String PREVIEW_THREAD_NAME = "image-preview";
+    // </editor-fold>
+
+    private class Request implements Runnable{
+
+        private final ImageEntry entry;
+        private final File file;
+        private final int maxWidth, maxHeight;
+        private Future<?> future, preview;
+        private Consumer<ImageFile> callback;
+
+        private Request(ImageEntry entry, int maxWidth, int maxHeight) {
+            this.entry = entry;
+            file = entry.getFile();
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        private boolean isFull(){
+            return maxWidth <= 0;
+        }
+
+        @Override
+        public void run() {
+            ImageFile image;
+            try{
+                image = ImageFile.build(entry, maxWidth, maxHeight);
+            }catch(RuntimeException | OutOfMemoryError ex){ //e.g. unsupported color profile, or too large
+                Logger.log.print(Level.WARNING, ex);
+                image = ImageFile.buildFailed(entry); //must still be delivered, or it'd stay pending
+            }
+            final ImageFile built = image;
+            SwingUtilities.invokeLater(() -> loaded(this, built));
+        }
+
+        private void preview(){
+            final ImageFile image;
+            try{
+                image = ImageFile.buildPreview(entry, maxWidth, maxHeight);
+            }catch(RuntimeException | OutOfMemoryError ex){ //the full decode is still delivered
+                Logger.log.print(Level.WARNING, ex);
+                return;
+            }
+            if(image != null) SwingUtilities.invokeLater(() -> previewed(this, image));
+        }
+
+    }
+
+    private final ExecutorService executor;
+    private final ExecutorService previewExecutor; //so previews never wait behind full decodes
+    private final Map<File, Request> pending = new HashMap<>();
+    private final ImageCache cache;
+    private final Set<File> window = new HashSet<>();
+    private Request requested;
+    private int targetWidth, targetHeight;
+
+    public ImageLoader(long cacheBudget) {
+        cache = new ImageCache(cacheBudget);
+        final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()-1));
+        executor = Executors.newFixedThreadPool(threads, r -> createThread(r, THREAD_NAME));
+        previewExecutor = Executors.newSingleThreadExecutor(r -> createThread(r, PREVIEW_THREAD_NAME));
+    }
+
+    private static Thread createThread(Runnable r, String name){
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true); //must not hold the program open
+        return t;
+    }
+
+    /**
+     * Calls back with the decoded image, immediately if already decoded or as soon as its decoding finishes.
+     * In the latter case, it may first be called back with a quick preview.
+     * Only the callback of the last requested image is kept, older requests are just decoded.
+     */
+    public void load(ImageEntry entry, Consumer<ImageFile> callback){
+        load(entry, false, callback);
+    }
+
+    /**
+     * Same as {@link #load(ImageEntry, Consumer)}, but ignoring the target size.
+     */
+    public void loadFull(ImageEntry entry, Consumer<ImageFile> callback){
+        load(entry, true, callback);
+    }
+
+    private void load(ImageEntry entry, boolean full, Consumer<ImageFile> callback){
+        if(requested != null){
+            requested.callback = null;
+            if(requested.preview != null) requested.preview.cancel(false);
+            requested = null;
+        }
+        final ImageFile image = cache.get(entry);
+        if(image != null && (full? !image.isSubsampled() : image.fits(targetWidth, targetHeight))){
+            callback.accept(image);
+            return;
+        }
+        requested = submit(entry, full); //if cached but too small, the new one replaces it
+        requested.callback = callback;
+        if(!full && image == null){
+            final Request request = requested;
+            request.preview = previewExecutor.submit(request::preview);
+        }
+    }
+
+    /**
+     * Decodes the given files ahead of time, cancelling any other pending image that is not waiting to be
+     * delivered.
+     */
+    public void preload(Collection<ImageEntry> entries){
+        window.clear();
+        entries.forEach(e -> window.add(e.getFile()));
+        final Iterator<Request> i = pending.values().iterator();
+        while(i.hasNext()){
+            final Request r = i.next();
+            if(r.callback == null && !window.contains(r.file)){
+                r.future.cancel(false); //don't interrupt, ImageIO may leave the stream in a bad state
+                i.remove();
+            }
+        }
+        for (ImageEntry entry : entries) {
+            if(!cache.contains(entry)) submit(entry, false); //also keeps the cached ones from being evicted
+        }
+    }
+
+    /**
+     * Drops the last requested image, cancelling its decoding unless it's also being preloaded.
+     */
+    public void cancelRequested(){
+        if(requested == null) return;
+        requested.callback = null;
+        if(requested.preview != null) requested.preview.cancel(false);
+        if(!window.contains(requested.file) && pending.get(requested.file) == requested){
+            requested.future.cancel(false);
+            pending.remove(requested.file);
+        }
+        requested = null;
+    }
+
+    public void clear(){
+        pending.values().forEach(r -> r.future.cancel(false));
+        pending.clear();
+        window.clear();
+        requested = null;
+    }
+
+    public void invalidate(File file){
+        final Request request = pending.remove(file);
+        if(request != null) request.future.cancel(false);
+        cache.remove(file);
+    }
+
+    private Request submit(ImageEntry entry, boolean full){
+        final File file = entry.getFile();
+        Request request = pending.get(file);
+        if(request == null || (full && !request.isFull())){
+            if(request != null) request.future.cancel(false);
+            request = full? new Request(entry, 0, 0) : new Request(entry, targetWidth, targetHeight);
+            request.future = executor.submit(request);
+            pending.put(file, request);
+        }
+        return request;
+    }
+
+    /**
+     * Size images are subsampled to fit, usually the viewer size; 0 to always decode in full resolution.
+     */
+    public void setTargetSize(int width, int height){
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+    public ImageCache getCache() {
+        return cache;
+    }
+
+    private void previewed(Request request, ImageFile image){
+        if(request == requested && pending.get(request.file) == request){ //still not decoded
+            request.callback.accept(image);
+        }
+    }
+
+    private void loaded(Request request, ImageFile image){
+        if(pending.get(request.file) != request) return; //cancelled or cleared meanwhile
+        pending.remove(request.file);
+        cache.put(request.entry, image);
+        if(request == requested){
+            requested = null;
+            if(request.preview != null) request.preview.cancel(false);
+            request.callback.accept(image);
+        }
+    }
+
+}
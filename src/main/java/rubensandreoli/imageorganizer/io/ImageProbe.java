@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Information read from an image's header alone, without decoding any pixel, so it takes about the same time as
+ * reading the file's attributes.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ImageProbe {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final int THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()); //mostly waiting on the disk
+    // </editor-fold>
+
+    private final int width, height;
+    private final String format;
+    private final int frames;
+
+    private ImageProbe(int width, int height, String format, int frames) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.frames = frames;
+    }
+
+    /**
+     * @return the header information, or null if the file can't be read or isn't a supported image
+     */
+    public static ImageProbe probe(File file){
+        try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = input == null? null:ImageIO.getImageReaders(input);
+            if(readers == null || !readers.hasNext()) return null;
+            final ImageReader reader = readers.next();
+            try{
+                reader.setInput(input, false, true);
+                final String format = reader.getFormatName().toLowerCase();
+                //only gifs are commonly animated, and their frames can be counted skipping the pixel data:
+                final int frames = reader.getNumImages(format.equals("gif"));
+                return new ImageProbe(reader.getWidth(0), reader.getHeight(0), format, Math.max(1, frames));
+            }finally{
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException ex) { //can't read, or malformed header
+            return null;
+        }
+    }
+
+    /**
+     * Probes the images that don't have their dimensions yet in parallel, storing the results in them.
+     * Must not be called from the EDT, as it only returns when done or stopped.
+     *
+     * @param stop checked before each image
+     * @return number of images probed
+     */
+    public static int probeAll(Collection<ImageEntry> images, BooleanSupplier stop) throws InterruptedException{
+        final ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try{
+            return pool.submit(() -> (int) images.parallelStream()
+                    .filter(i -> !i.hasDimensions() && !stop.getAsBoolean())
+                    .map(i -> {
+                        final ImageProbe probe = probe(i.getFile());
+                        if(probe == null) return false;
+                        i.setProbe(probe);
+                        return true;
+                    })
+                    .filter(Boolean::booleanValue)
+                    .count()).get();
+        }catch(ExecutionException ex){
+            throw new IllegalStateException(ex.getCause());
+        }finally{
+            pool.shutdownNow();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+    // </editor-fold>
+
+}
@@ -32,16 +32,29 @@ public class Settings {
     public static final String KEY_SHOW_HIDDEN = "hidden_folders";
     public static final String KEY_SHOW_ALERT = "delete_alert";
     public static final String KEY_SHORTCUTS = "shortcuts";
+    public static final String KEY_PRELOAD_NEXT = "preload_next";
+    public static final String KEY_PRELOAD_PREVIOUS = "preload_previous";
+    public static final String KEY_CACHE_SIZE = "cache_size";
+    public static final String KEY_THUMBNAIL_CACHE_SIZE = "thumbnail_cache_size";
     
     public static final boolean DEFAULT_DEBUG = false;
     public static final boolean DEFAULT_SHOW_HIDDEN = false;
     public static final boolean DEFAULT_SHOW_ALERT = true;
+    public static final int DEFAULT_PRELOAD_NEXT = 2;
+    public static final int DEFAULT_PRELOAD_PREVIOUS = 1;
+    public static final int DEFAULT_CACHE_SIZE = 0; //MB; 0 = a quarter of the maximum heap
+    public static final int DEFAULT_THUMBNAIL_CACHE_SIZE = 256; //MB, on disk
+    private static final int MEGABYTE = 1024*1024;
     private static final String EMPTY_SHORTCUTS = ""; //used to call overloaded method in the constructor
     // </editor-fold>
     
     private boolean debug;
     private boolean showHidden;
     private boolean showAlert;
+    private int preloadNext;
+    private int preloadPrevious;
+    private int cacheSize;
+    private int thumbnailCacheSize;
     private final ShortcutMap shortcutMap= new ShortcutMap();
     private SettingsListener listener;
 
@@ -49,6 +62,10 @@ public class Settings {
         debug = Configuration.values.get(KEY_DEBUG, DEFAULT_DEBUG);
         showHidden = Configuration.values.get(KEY_SHOW_HIDDEN, DEFAULT_SHOW_HIDDEN);
         showAlert = Configuration.values.get(KEY_SHOW_ALERT, DEFAULT_SHOW_ALERT);
+        preloadNext = getInt(KEY_PRELOAD_NEXT, DEFAULT_PRELOAD_NEXT);
+        preloadPrevious = getInt(KEY_PRELOAD_PREVIOUS, DEFAULT_PRELOAD_PREVIOUS);
+        cacheSize = getInt(KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+        thumbnailCacheSize = getInt(KEY_THUMBNAIL_CACHE_SIZE, DEFAULT_THUMBNAIL_CACHE_SIZE);
         shortcutMap.put(Configuration.values.get(KEY_SHORTCUTS, EMPTY_SHORTCUTS));
         if(shortcutMap.isEmpty()){ //failed loading or empty, default shortcuts
             shortcutMap.put(new Shortcut(KeyEvent.VK_LEFT, Shortcut.Action.PREVIOUS, null));
@@ -56,10 +73,19 @@ public class Settings {
             shortcutMap.put(new Shortcut(KeyEvent.VK_DELETE, Shortcut.Action.DELETE, null));
             shortcutMap.put(new Shortcut(KeyEvent.VK_F1, Shortcut.Action.INFO, null));
             shortcutMap.put(new Shortcut(KeyEvent.VK_F5, Shortcut.Action.REFRESH, null));
+            shortcutMap.put(new Shortcut(KeyEvent.VK_BACK_SPACE, Shortcut.Action.UNDO, null));
             Configuration.values.put(KEY_SHORTCUTS, shortcutMap.toString());
         }
     }
 
+    private static int getInt(String key, int defaultValue){ //only set by editing the file, no dialog option
+        try{
+            return Math.max(0, Integer.parseInt(Configuration.values.get(key, String.valueOf(defaultValue)).trim()));
+        }catch(NumberFormatException ex){
+            return defaultValue;
+        }
+    }
+
     public boolean update(boolean showHidden, boolean showAlert, ShortcutMap shortcutMap){
         boolean changed = false;
         
@@ -114,6 +140,22 @@ public class Settings {
         return showAlert;
     }
 
+    public int getPreloadNext() {
+        return preloadNext;
+    }
+
+    public int getPreloadPrevious() {
+        return preloadPrevious;
+    }
+
+    public long getCacheBudget() { //in bytes
+        return cacheSize == 0? Runtime.getRuntime().maxMemory()/4 : (long) cacheSize*MEGABYTE;
+    }
+
+    public long getThumbnailCacheLimit() { //in bytes
+        return (long) thumbnailCacheSize*MEGABYTE;
+    }
+
     public Shortcut getShortcut(int code) {
          return shortcutMap.get(code);
     }
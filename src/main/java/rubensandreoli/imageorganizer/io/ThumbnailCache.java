@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+
+/**
+ * Thumbnails saved to disk, so they are only generated once per image.
+ * <br>
+ * All thumbnails are packed in a single data file, each one as a record with its key (path, modification time
+ * and size) followed by the encoded image; records are only ever appended. Where each record starts is kept in
+ * memory, and saved to an index file on {@link #close()}. If the index is missing or older than the data, the
+ * records after what it covers are read back from the data file itself.
+ * <br>
+ * The data file may grow beyond its limit during a session; it's compacted the next time it's opened, keeping
+ * only the most recently added thumbnails.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ThumbnailCache {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final File DIRECTORY = new File("thumbnails");
+    private static final File DATA_FILE = new File(DIRECTORY, "thumbnails.dat");
+    private static final File INDEX_FILE = new File(DIRECTORY, "thumbnails.idx");
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final int MAGIC = 0x494F5448; //"IOTH"
+    private static final int VERSION = 1;
+    private static final int RECORD_MAGIC = 0x5245; //marks where records start, to detect a torn write
+    private static final int HEADER_SIZE = 2+4+8+8+4; //record magic, path length, modified, size, data length
+    private static final int BUFFER_SIZE = 64*1024;
+    private static final String FORMAT = "jpg";
+    // </editor-fold>
+
+    private static class Entry{
+
+        private final long modified, size;
+        private final long offset; //where the record starts
+        private final int length; //of the encoded image
+
+        private Entry(long modified, long size, long offset, int length) {
+            this.modified = modified;
+            this.size = size;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+    private final long limit;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private long length; //of the data file
+    private boolean opened;
+
+    public ThumbnailCache(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the saved thumbnail, or null if there is none or the image changed since it was saved
+     */
+    public BufferedImage get(ImageEntry image){
+        final byte[] data;
+        synchronized(this){
+            if(!open()) return null;
+            final Entry entry = entries.get(image.getPath());
+            if(entry == null || entry.modified != image.getModified() || entry.size != image.getSize()) return null;
+            final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            final long position = entry.offset + HEADER_SIZE + image.getPath().getBytes(StandardCharsets.UTF_8).length;
+            try{
+                while(buffer.hasRemaining()){
+                    if(channel.read(buffer, position+buffer.position()) < 0) throw new EOFException();
+                }
+            }catch(IOException ex){
+                Logger.log.print(Level.WARNING, ex);
+                entries.remove(image.getPath());
+                return null;
+            }
+            data = buffer.array();
+        }
+        try{ //decoded outside of the lock
+            return ImageIO.read(new ByteArrayInputStream(data));
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            return null;
+        }
+    }
+
+    public void put(ImageEntry image, BufferedImage thumbnail){
+        final byte[] path = image.getPath().getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE+path.length+8*1024);
+        try(DataOutputStream out = new DataOutputStream(bytes)){ //encoded outside of the lock
+            out.writeShort(RECORD_MAGIC);
+            out.writeInt(path.length);
+            out.write(path);
+            out.writeLong(image.getModified());
+            out.writeLong(image.getSize());
+            out.writeInt(0); //data length, known after encoding
+            if(!ImageIO.write(thumbnail, FORMAT, out)) return;
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            return;
+        }
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        final int dataLength = record.capacity() - HEADER_SIZE - path.length;
+        record.putInt(HEADER_SIZE-4+path.length, dataLength);
+        synchronized(this){
+            if(!open()) return;
+            try{
+                final long offset = length;
+                while(record.hasRemaining()) channel.write(record, offset+record.position());
+                length += record.capacity();
+                entries.put(image.getPath(), new Entry(image.getModified(), image.getSize(), offset, dataLength));
+            }catch(IOException ex){
+                Logger.log.print(Level.WARNING, ex);
+            }
+        }
+    }
+
+    /**
+     * Saves the index and closes the data file; it's opened again if needed.
+     */
+    public synchronized void close(){
+        if(channel == null) return;
+        try{
+            channel.force(false); //index must never point past what is actually saved
+            writeIndex();
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+        }finally{
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.log.print(Level.WARNING, ex);
+            }
+            channel = null;
+            opened = false;
+            entries.clear();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" OPENING ">
+    private boolean open(){ //must hold the lock
+        if(opened) return channel != null;
+        opened = true; //only tried once
+        try{
+            if(!DIRECTORY.isDirectory() && !DIRECTORY.mkdirs()) throw new IOException("failed creating "+DIRECTORY.getPath());
+            long covered = readIndex();
+            if(DATA_FILE.length() > covered) covered = scan(covered); //written after the index was last saved
+            if(covered > limit) covered = compact();
+            channel = FileChannel.open(DATA_FILE.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.truncate(covered); //torn record, if any
+            length = covered;
+            return true;
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            entries.clear();
+            channel = null;
+            return false;
+        }
+    }
+
+    private long readIndex(){
+        if(!INDEX_FILE.isFile() || !DATA_FILE.isFile()) return 0;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(INDEX_FILE), BUFFER_SIZE))){
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return 0;
+            final long covered = in.readLong();
+            if(covered > DATA_FILE.length()) return 0; //data file replaced
+            final int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+            }
+            return covered;
+        }catch(IOException ex){ //corrupted, rebuilt from the data file
+            Logger.log.print(Level.WARNING, ex);
+            entries.clear();
+            return 0;
+        }
+    }
+
+    private void writeIndex() throws IOException{
+        final File temp = new File(DIRECTORY, INDEX_FILE.getName()+TEMP_EXTENSION);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().modified);
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().offset);
+                out.writeInt(e.getValue().length);
+            }
+        }
+        Files.move(temp.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the records from the given position on, adding them to the entries.
+     *
+     * @return where the last complete record ends
+     */
+    private long scan(long from) throws IOException{
+        long position = from;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(DATA_FILE), BUFFER_SIZE))){
+            skip(in, from);
+            while(true){
+                final int magic;
+                try{
+                    magic = in.readUnsignedShort();
+                }catch(EOFException ex){
+                    break;
+                }
+                if(magic != RECORD_MAGIC) break;
+                final int pathLength = in.readInt();
+                if(pathLength <= 0 || pathLength > Short.MAX_VALUE) break;
+                final String path = new String(in.readNBytes(pathLength), StandardCharsets.UTF_8);
+                final long modified = in.readLong(), size = in.readLong();
+                final int dataLength = in.readInt();
+                if(dataLength <= 0) break;
+                skip(in, dataLength);
+                entries.put(path, new Entry(modified, size, position, dataLength));
+                position += HEADER_SIZE + pathLength + dataLength;
+            }
+        }catch(EOFException ex){} //torn record at the end
+        return position;
+    }
+
+    private static void skip(DataInputStream in, long bytes) throws IOException{
+        while(bytes > 0){
+            final long skipped = in.skip(bytes);
+            if(skipped <= 0){
+                if(in.read() < 0) throw new EOFException();
+                bytes--;
+            }else{
+                bytes -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the data file with the most recently added thumbnails only, taking half of the limit.
+     *
+     * @return the new length of the data file
+     */
+    private long compact() throws IOException{
+        final List<Map.Entry<String, Entry>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort((e1, e2) -> Long.compare(e2.getValue().offset, e1.getValue().offset)); //newest first
+        final List<Map.Entry<String, Entry>> selected = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<String, Entry> e : sorted) {
+            total += getRecordLength(e.getKey(), e.getValue());
+            if(total > limit/2) break;
+            selected.add(e);
+        }
+        Collections.reverse(selected); //written oldest first, so offsets still tell which is newer next time
+        final File temp = new File(DIRECTORY, DATA_FILE.getName()+TEMP_EXTENSION);
+        final Map<String, Entry> kept = new HashMap<>();
+        long position = 0;
+        try(FileChannel in = FileChannel.open(DATA_FILE.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            for (Map.Entry<String, Entry> e : selected) {
+                final Entry entry = e.getValue();
+                final long recordLength = getRecordLength(e.getKey(), entry);
+                long copied = 0;
+                while(copied < recordLength){
+                    copied += in.transferTo(entry.offset+copied, recordLength-copied, out);
+                }
+                kept.put(e.getKey(), new Entry(entry.modified, entry.size, position, entry.length));
+                position += recordLength;
+            }
+        }
+        Files.move(temp.toPath(), DATA_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        INDEX_FILE.delete(); //rebuilt by scanning if closed abruptly
+        entries.clear();
+        entries.putAll(kept);
+        return position;
+    }
+
+    private static long getRecordLength(String key, Entry entry){
+        return HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + entry.length;
+    }
+    // </editor-fold>
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+
+/**
+ * Generates thumbnails on a worker pool, reading them from a {@link ThumbnailCache} when already generated, and
+ * keeping the most recently shown ones in memory.
+ * <br>
+ * Like {@link ImageLoader}, every method is expected to be called from the EDT.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class ThumbnailLoader {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    public static final int SIZE = 96;
+    private static final int MEMORY_ENTRIES = 500; //~18MB at most
+    private static final int MAX_THREADS = 4;
+    private static final String THREAD_NAME = "thumbnail-loader";
+    // </editor-fold>
+
+    private final ExecutorService executor;
+    private final ThumbnailCache disk;
+    private final Map<String, BufferedImage> memory = new LinkedHashMap<>(16, 0.75f, true){ //access order
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private final Map<String, Future<?>> pending = new HashMap<>();
+    private final Set<String> failed = new HashSet<>(); //not retried until cleared
+    private Runnable callback;
+
+    public ThumbnailLoader(long diskLimit) {
+        disk = new ThumbnailCache(diskLimit);
+        final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()-1));
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, THREAD_NAME);
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY); //the current image comes first
+            return t;
+        });
+    }
+
+    /**
+     * @return the thumbnail if already in memory; otherwise null, and the callback is called once it's loaded
+     */
+    public BufferedImage get(ImageEntry entry){
+        final String key = buildKey(entry);
+        final BufferedImage thumbnail = memory.get(key);
+        if(thumbnail == null && !failed.contains(key) && !pending.containsKey(key)){
+            pending.put(key, executor.submit(() -> {
+                BufferedImage t;
+                try{
+                    t = disk.get(entry);
+                    if(t == null){
+                        t = ImageFile.buildThumbnail(entry, SIZE);
+                        if(t != null) disk.put(entry, t);
+                    }
+                }catch(RuntimeException | OutOfMemoryError ex){ //must still be delivered, or it'd stay pending
+                    Logger.log.print(Level.WARNING, ex);
+                    t = null;
+                }
+                final BufferedImage loaded = t;
+                SwingUtilities.invokeLater(() -> loaded(key, loaded));
+            }));
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Cancels every pending thumbnail that isn't one of the given images, e.g. scrolled out of view.
+     */
+    public void retain(Collection<ImageEntry> entries){
+        final Set<String> keys = new HashSet<>();
+        entries.forEach(e -> keys.add(buildKey(e)));
+        final Iterator<Map.Entry<String, Future<?>>> i = pending.entrySet().iterator();
+        while(i.hasNext()){
+            final Map.Entry<String, Future<?>> e = i.next();
+            if(!keys.contains(e.getKey())){
+                e.getValue().cancel(false);
+                i.remove();
+            }
+        }
+    }
+
+    public void clear(){
+        pending.values().forEach(f -> f.cancel(false));
+        pending.clear();
+        failed.clear();
+    }
+
+    /**
+     * Saves the disk cache index, should be called before exiting.
+     */
+    public void close(){
+        clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(2, TimeUnit.SECONDS); //running ones may still be saving
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        disk.close();
+    }
+
+    private void loaded(String key, BufferedImage thumbnail){
+        final boolean wanted = pending.remove(key) != null; //may have been cancelled while already running
+        if(thumbnail != null) memory.put(key, thumbnail);
+        else if(wanted) failed.add(key);
+        if(wanted && callback != null) callback.run();
+    }
+
+    private static String buildKey(ImageEntry entry){ //changed files must not hit
+        return entry.getPath() + '|' + entry.getModified() + '|' + entry.getSize();
+    }
+
+    public void setCallback(Runnable callback) {
+        this.callback = callback;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.swing.SwingUtilities;
+
+/**
+ * Decodes regions of an image too large to be decoded whole, as square tiles at power of two subsamplings, so
+ * only what is visible is ever decoded, at the resolution it's shown. Tiles are kept in memory up to a fixed
+ * number, least recently used first to go, so memory depends on the viewer size, not on the image size.
+ * <br>
+ * Like {@link ThumbnailLoader}, every method is expected to be called from the EDT.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class TileLoader {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    public static final int TILE_SIZE = 512; //decoded pixels
+    private static final int MEMORY_TILES = 96; //~100MB at most, a few screens
+    private static final int MAX_THREADS = 2; //each one reads the file on its own
+    private static final String THREAD_NAME = "tile-loader";
+    private static final int MAX_MEMORY_DIVISOR = 4; //images larger than this share of the heap are tiled
+    // </editor-fold>
+
+    private final ExecutorService executor;
+    private final Map<String, BufferedImage> memory = new LinkedHashMap<>(16, 0.75f, true){ //access order
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+            return size() > MEMORY_TILES;
+        }
+    };
+    private final Map<String, Future<?>> pending = new HashMap<>();
+    private final Set<String> failed = new HashSet<>();
+    private final Set<String> requested = new HashSet<>(); //since the last retain
+    private File file;
+    private int width, height;
+    private Runnable callback;
+
+    public TileLoader() {
+        final int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()-1));
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, THREAD_NAME);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Whether decoding the image in full resolution would take too much of the memory available.
+     */
+    public static boolean isTooLarge(ImageFile image){
+        return (long) image.getWidth() * image.getHeight() * Integer.BYTES > Runtime.getRuntime().maxMemory()/MAX_MEMORY_DIVISOR;
+    }
+
+    /**
+     * Image the tiles are from; tiles of any other image are discarded.
+     */
+    public void setImage(ImageFile image){
+        final File newFile = new File(image.getPath());
+        if(newFile.equals(file)) return;
+        clear();
+        file = newFile;
+        width = image.getWidth();
+        height = image.getHeight();
+    }
+
+    /**
+     * @param sampling power of two, 1 = full resolution
+     * @return the tile if already decoded; otherwise null, and the callback is called once it's decoded
+     */
+    public BufferedImage get(int sampling, int col, int row){
+        final String key = sampling + ":" + col + ":" + row;
+        requested.add(key);
+        final BufferedImage tile = memory.get(key);
+        if(tile == null && file != null && !failed.contains(key) && !pending.containsKey(key)){
+            final File source = file;
+            final int span = TILE_SIZE*sampling; //original pixels covered
+            final Rectangle region = new Rectangle(col*span, row*span, Math.min(span, width-col*span), Math.min(span, height-row*span));
+            pending.put(key, executor.submit(() -> {
+                final BufferedImage decoded = ImageFile.decodeRegion(source, region, sampling);
+                SwingUtilities.invokeLater(() -> loaded(source, key, decoded));
+            }));
+        }
+        return tile;
+    }
+
+    /**
+     * Cancels every pending tile not asked for since the last call, e.g. scrolled out of view.
+     */
+    public void retainRequested(){
+        final Iterator<Map.Entry<String, Future<?>>> i = pending.entrySet().iterator();
+        while(i.hasNext()){
+            final Map.Entry<String, Future<?>> e = i.next();
+            if(!requested.contains(e.getKey())){
+                e.getValue().cancel(false);
+                i.remove();
+            }
+        }
+        requested.clear();
+    }
+
+    public void clear(){
+        pending.values().forEach(f -> f.cancel(false));
+        pending.clear();
+        memory.clear();
+        failed.clear();
+        requested.clear();
+        file = null;
+    }
+
+    private void loaded(File source, String key, BufferedImage tile){
+        if(!source.equals(file)) return; //image changed meanwhile
+        final boolean wanted = pending.remove(key) != null;
+        if(tile != null) memory.put(key, tile);
+        else if(wanted) failed.add(key);
+        if(wanted && callback != null) callback.run();
+    }
+
+    public void setCallback(Runnable callback) {
+        this.callback = callback;
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import rubensandreoli.commons.exceptions.UnsupportedException;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+import rubensandreoli.commons.utils.FileUtils;
+
+/**
+ * Append-only journal of file operations, so the ones interrupted by a crash can be finished or undone the next
+ * time the program starts.
+ * <br>
+ * Each operation is recorded, and forced to disk, by the transfer thread right before touching the file; one
+ * queued but never started is simply lost, its file untouched. Operations are marked as finished once done, or
+ * once handed back to the user as failed, so only the ones interrupted by a crash are left. On
+ * {@link #recover()}, an unfinished move is finished if it was already copied, or its partial copy is removed
+ * otherwise; an unfinished delete is done again, as it was already confirmed.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class TransferJournal {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final File FILE = new File("transfers.journal"); //along with history.log
+    private static final byte BEGIN = 1;
+    private static final byte COMMIT = 2;
+    private static final int BUFFER_SIZE = 8*1024;
+    // </editor-fold>
+
+    public static enum Operation{MOVE, DELETE, TRASH}
+
+    private static class Record{
+
+        private final Operation operation;
+        private final File source;
+        private final File target; //moves only
+
+        private Record(Operation operation, File source, File target) {
+            this.operation = operation;
+            this.source = source;
+            this.target = target;
+        }
+
+    }
+
+    private static FileChannel channel;
+    private static long nextId = 1;
+    private static int open; //begun and not yet committed
+
+    private TransferJournal(){}
+
+    /**
+     * Records a move about to start; the file must not be touched if it fails.
+     *
+     * @return id to {@link #commit(long)} once finished
+     */
+    public static synchronized long begin(File source, File target) throws IOException{
+        return begin(Operation.MOVE, Collections.singletonList(source), target)[0];
+    }
+
+    /**
+     * Records deletes about to start, all forced to disk at once; the files must not be touched if it fails.
+     *
+     * @return ids, in the same order, to {@link #commit(long)} once finished
+     */
+    public static synchronized long[] begin(Operation operation, List<File> sources) throws IOException{
+        return begin(operation, sources, null);
+    }
+
+    private static long[] begin(Operation operation, List<File> sources, File target) throws IOException{
+        final long[] ids = new long[sources.size()];
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(bytes)){
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = nextId++;
+                out.writeByte(BEGIN);
+                out.writeLong(ids[i]);
+                out.writeByte(operation.ordinal());
+                out.writeUTF(sources.get(i).getPath());
+                out.writeUTF(target == null? "":target.getPath());
+            }
+        }
+        write(bytes.toByteArray());
+        channel.force(false); //must be on disk before the files are touched, so they can be recovered
+        open += ids.length;
+        return ids;
+    }
+
+    /**
+     * Marks the operation as finished: done, or failed and handed back to the user, who already sees the image
+     * back and must not have it changed on the next start. Not forced to disk, an operation found unfinished but
+     * actually finished is just checked again.
+     */
+    public static synchronized void commit(long id){
+        final ByteBuffer record = ByteBuffer.allocate(1+Long.BYTES).put(COMMIT).putLong(id);
+        try{
+            write(record.array());
+            if(--open == 0) channel.truncate(0); //nothing left to recover
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+        }
+    }
+
+    private static void write(byte[] record) throws IOException{
+        if(channel == null){
+            channel = FileChannel.open(FILE.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        while(buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    /**
+     * Finishes or undoes the operations left unfinished the last time, and clears the journal. Must be called
+     * before any other operation.
+     *
+     * @return number of unfinished operations found
+     */
+    public static synchronized int recover(){
+        if(!FILE.isFile()) return 0;
+        final Map<Long, Record> unfinished = new LinkedHashMap<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FILE), BUFFER_SIZE))){
+            while(true){
+                final byte type = in.readByte();
+                final long id = in.readLong();
+                if(type == BEGIN){
+                    final Operation operation = Operation.values()[in.readByte()];
+                    final File source = new File(in.readUTF());
+                    final String target = in.readUTF();
+                    unfinished.put(id, new Record(operation, source, target.isEmpty()? null:new File(target)));
+                }else if(type == COMMIT){
+                    unfinished.remove(id);
+                }else{
+                    throw new IOException("corrupted journal");
+                }
+            }
+        }catch(EOFException ex){ //end, or record torn by the crash, which was then never started
+        }catch(IOException | RuntimeException ex){
+            Logger.log.print(Level.WARNING, ex);
+        }
+        unfinished.values().forEach(TransferJournal::recover);
+        if(!FILE.delete()) Logger.log.print(Level.WARNING, new IOException("failed clearing "+FILE.getPath()));
+        return unfinished.size();
+    }
+
+    private static void recover(Record record){
+        final File source = record.source;
+        try{
+            switch(record.operation){
+                case MOVE:
+                    final File target = record.target;
+                    final File part = FileTransfer.getPartFile(target);
+                    if(part.exists() && !part.delete()) throw new IOException("failed removing "+part.getPath());
+                    //copied and renamed, but the source wasn't deleted yet:
+                    if(source.isFile() && target.isFile() && source.length() == target.length()){
+                        if(!source.delete()) throw new IOException("failed finishing move of "+source.getPath());
+                    }
+                    break;
+                case DELETE:
+                    if(source.exists() && !FileUtils.deleteFile(source)) throw new IOException("failed deleting "+source.getPath());
+                    break;
+                case TRASH:
+                    if(source.exists() && !FileUtils.removeFile(source)) throw new IOException("failed removing "+source.getPath());
+                    break;
+            }
+        }catch(IOException | UnsupportedException ex){
+            Logger.log.print(Level.WARNING, ex);
+        }
+    }
+
+    /**
+     * Closes the journal, removing it if nothing was left unfinished.
+     */
+    public static synchronized void close(){
+        if(channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.log.print(Level.WARNING, ex);
+        }
+        channel = null;
+        if(open == 0) FILE.delete();
+    }
+
+}
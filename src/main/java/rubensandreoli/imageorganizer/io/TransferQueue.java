@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+import rubensandreoli.commons.exceptions.UnsupportedException;
+import rubensandreoli.commons.others.Level;
+import rubensandreoli.commons.others.Logger;
+import rubensandreoli.commons.utils.FileUtils;
+import rubensandreoli.imageorganizer.io.support.TransferListener;
+
+/**
+ * Moves and deletes images in the background, one at a time and in the order they were queued, so moving
+ * to another volume, or to the trash, doesn't hold the UI until it's done. See {@link FileTransfer}.
+ * <br>
+ * Every method is expected to be called from the EDT, where the results are also reported.
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class TransferQueue {
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final String THREAD_NAME = "file-transfer";
+    private static final int FLUSH_TIMEOUT = 30; //seconds
+    private static final long PROGRESS_INTERVAL = 250_000_000; //ns
+    // </editor-fold>
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, THREAD_NAME);
+        t.setDaemon(true); //waited by flush()
+        return t;
+    });
+    //EDT only:
+    private int pending;
+    private long transferredBytes, transferNanos;
+    private TransferListener listener;
+
+    /**
+     * Queues the image to be moved to the folder.
+     *
+     * @param onFailure called if it couldn't be moved, after the listener
+     */
+    public void enqueue(ImageEntry image, String folder, Runnable onFailure){
+        pending++;
+        fireQueueChanged();
+        executor.execute(() -> {
+            final long start = System.nanoTime();
+            final long[] lastReport = {start};
+            long id = 0;
+            boolean moved = false;
+            try{
+                final File target = FileTransfer.resolveTarget(image.getFile(), folder);
+                id = TransferJournal.begin(image.getFile(), target); //not touched if it fails
+                FileTransfer.move(image.getFile(), target, copied -> {
+                    final long now = System.nanoTime();
+                    if(now - lastReport[0] < PROGRESS_INTERVAL) return; //only large files are reported
+                    lastReport[0] = now;
+                    final double speed = copied / ((now - start) / 1e9);
+                    SwingUtilities.invokeLater(() -> {
+                        if(listener != null) listener.transferProgress(image, copied, speed);
+                    });
+                });
+                moved = true;
+            }catch(IOException | RuntimeException ex){ //e.g. no permission, or destination full
+                Logger.log.print(Level.WARNING, ex);
+            }
+            if(id != 0) TransferJournal.commit(id); //done, or handed back as failed
+            final long elapsed = System.nanoTime() - start;
+            final boolean success = moved;
+            SwingUtilities.invokeLater(() -> transferred(image, folder, success, elapsed, onFailure));
+        });
+    }
+
+    /**
+     * Queues the images to be sent to the trash, or deleted permanently. If the trash isn't supported, the
+     * remaining images are handed back to the listener without trying again.
+     */
+    public void enqueueDelete(List<ImageEntry> images, boolean trash){
+        pending += images.size();
+        fireQueueChanged();
+        executor.execute(() -> {
+            final long[] ids = journal(trash? TransferJournal.Operation.TRASH : TransferJournal.Operation.DELETE, images);
+            final List<ImageEntry> failed = new ArrayList<>(), unsupported = new ArrayList<>();
+            for (int i = 0; i < images.size(); i++) {
+                final ImageEntry image = images.get(i);
+                if(ids == null){ //not journaled, not touched
+                    failed.add(image);
+                }else if(!unsupported.isEmpty()){
+                    unsupported.add(image);
+                    TransferJournal.commit(ids[i]); //not touched, handed back
+                }else{
+                    try{
+                        if(!delete(image, trash)) failed.add(image);
+                    }catch(UnsupportedException ex){
+                        Logger.log.print(Level.WARNING, ex);
+                        unsupported.add(image);
+                    }catch(RuntimeException ex){
+                        Logger.log.print(Level.WARNING, ex);
+                        failed.add(image);
+                    }
+                    TransferJournal.commit(ids[i]); //done, or handed back as failed
+                }
+            }
+            SwingUtilities.invokeLater(() -> deleted(images.size(), failed, unsupported));
+        });
+    }
+
+    private static boolean delete(ImageEntry image, boolean trash) throws UnsupportedException{
+        final File file = image.getFile();
+        return trash? FileUtils.removeFile(file) : FileUtils.deleteFile(file);
+    }
+
+    /**
+     * Records the deletes right before starting, on the transfer thread, so the disk is never forced on the EDT.
+     *
+     * @return ids of the journal, or null if it couldn't be written
+     */
+    private static long[] journal(TransferJournal.Operation operation, List<ImageEntry> images){
+        final List<File> files = new ArrayList<>(images.size());
+        images.forEach(i -> files.add(i.getFile()));
+        try{
+            return TransferJournal.begin(operation, files);
+        }catch(IOException ex){
+            Logger.log.print(Level.WARNING, ex);
+            return null;
+        }
+    }
+
+    private void deleted(int amount, List<ImageEntry> failed, List<ImageEntry> unsupported){
+        pending -= amount;
+        if(listener != null){
+            if(!failed.isEmpty()) listener.deletesFailed(failed);
+            if(!unsupported.isEmpty()) listener.trashUnsupported(unsupported);
+        }
+        fireQueueChanged();
+    }
+
+    private void transferred(ImageEntry image, String folder, boolean success, long elapsed, Runnable onFailure){
+        pending--;
+        if(success){
+            transferredBytes += image.getSize();
+            transferNanos += elapsed;
+        }else{
+            if(listener != null) listener.transferFailed(image, folder);
+            onFailure.run();
+        }
+        fireQueueChanged();
+    }
+
+    private void fireQueueChanged(){
+        if(listener != null) listener.queueChanged(pending, getBytesPerSecond());
+    }
+
+    /**
+     * Waits for queued transfers to finish, should be called before exiting.
+     */
+    public void flush(){
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(FLUSH_TIMEOUT, TimeUnit.SECONDS)){
+                Logger.log.print(Level.WARNING, "transfers still pending on exit", new IllegalStateException());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // <editor-fold defaultstate="collapsed" desc=" GETTERS ">
+    public int getPending() {
+        return pending;
+    }
+
+    public double getBytesPerSecond() { //average of the completed transfers
+        return transferNanos == 0? 0 : transferredBytes / (transferNanos / 1e9);
+    }
+    // </editor-fold>
+
+    public void setListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 Rubens A. Andreoli Jr.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package rubensandreoli.imageorganizer.io.support;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Array backed list that keeps its free space where the last insertion or removal happened (gap buffer).
+ * <br>
+ * Positional access is constant time like an {@code ArrayList}, but insertions and removals only move the
+ * elements between the gap and the new position, so repeatedly removing around the same position, as when
+ * sorting a folder image by image, is also constant time.
+ * <br>
+ * References:
+ * <br>
+ * https://en.wikipedia.org/wiki/Gap_buffer
+ *
+ * @author Rubens A. Andreoli Jr.
+ */
+public class GapList<E> extends AbstractList<E> implements RandomAccess{
+
+    // <editor-fold defaultstate="collapsed" desc=" STATIC FIELDS ">
+    private static final int MIN_CAPACITY = 16;
+    // </editor-fold>
+
+    private Object[] items = new Object[MIN_CAPACITY];
+    private int gapStart = 0, gapEnd = MIN_CAPACITY; //gap = [gapStart, gapEnd)
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkIndex(index, size());
+        return (E) items[index < gapStart? index : index + gapEnd - gapStart];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        checkIndex(index, size());
+        final int i = index < gapStart? index : index + gapEnd - gapStart;
+        final E old = (E) items[i];
+        items[i] = element;
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        if(index < 0 || index > size()) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size());
+        if(gapStart == gapEnd) grow();
+        moveGap(index);
+        items[gapStart++] = element;
+        modCount++;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        checkIndex(index, size());
+        moveGap(index);
+        final E element = (E) items[gapEnd];
+        items[gapEnd++] = null;
+        modCount++;
+        return element;
+    }
+
+    @Override
+    public void clear() {
+        items = new Object[MIN_CAPACITY];
+        gapStart = 0;
+        gapEnd = MIN_CAPACITY;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return items.length - (gapEnd - gapStart);
+    }
+
+    private void moveGap(int index){
+        if(index < gapStart){
+            final int count = gapStart - index;
+            System.arraycopy(items, index, items, gapEnd - count, count);
+            Arrays.fill(items, index, Math.min(gapStart, gapEnd - count), null);
+            gapStart -= count;
+            gapEnd -= count;
+        }else if(index > gapStart){
+            final int count = index - gapStart;
+            System.arraycopy(items, gapEnd, items, gapStart, count);
+            Arrays.fill(items, Math.max(gapEnd, index), gapEnd + count, null);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    private void grow(){
+        final int after = items.length - gapEnd;
+        final Object[] grown = new Object[Math.max(MIN_CAPACITY, items.length * 2)];
+        System.arraycopy(items, 0, grown, 0, gapStart);
+        System.arraycopy(items, gapEnd, grown, grown.length - after, after);
+        gapEnd = grown.length - after;
+        items = grown;
+    }
+
+    private static void checkIndex(int index, int size){
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+    }
+
+}